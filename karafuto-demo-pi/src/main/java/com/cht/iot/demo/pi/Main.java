@@ -3,7 +3,6 @@ package com.cht.iot.demo.pi;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -11,8 +10,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.service.api.DispatchingListener;
 import com.cht.iot.service.api.OpenMqttClient;
 import com.cht.iot.service.api.OpenRESTfulClient;
+import com.cht.iot.service.api.RawdataWriter;
 import com.cht.iot.util.JsonUtils;
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioFactory;
@@ -33,6 +34,7 @@ public class Main {
 		
 	final int restfulPort = 80;
 	final OpenRESTfulClient restful;	
+	final RawdataWriter writer;
 	
 	final int mqttPort = 1883;
 	final int keepAliveInterval = 10;
@@ -64,22 +66,31 @@ public class Main {
 	double cameraAngdeg = 180;
 	
 	ExecutorService executor = Executors.newSingleThreadExecutor();
+	ExecutorService dispatcher = Executors.newFixedThreadPool(2); // handle the MQTT events out of the MQTT thread
 	
 	public Main() {
 		gpio = GpioFactory.getInstance();
 		
 		restful = new OpenRESTfulClient(host, restfulPort, apiKey); // save or query the value
+		writer = new RawdataWriter(restful, 1000); // save the value in background
 		
 		mqtt = new OpenMqttClient(host, mqttPort, apiKey); // MQTT to listen the value changed
 		mqtt.setKeepAliveInterval(keepAliveInterval);
 	}
 	
 	public void init() {
+		writer.start();
+		
 		initGpio();
 		initMqtt();
 	}
 	
 	public void destroy() {
+		writer.stop();
+		
+		mqtt.stop();
+		dispatcher.shutdown();
+		
 		gpio.shutdown();
 	}
 	
@@ -120,18 +131,37 @@ public class Main {
 	
 	// subscribe the lamp & bracelet (www.mi.com [Xiaomi China])
 	protected void initMqtt() {
-		String lampTopic = OpenMqttClient.getRawdataTopic(deviceId, lampSensorId); // '/v1/device/25/sensor/lamp/rawdata'
-		String braceletTopic = OpenMqttClient.getRawdataTopic(deviceId, braceletSensorId); // '/v1/device/25/sensor/bracelet/rawdata'
-		String shutterTopic = OpenMqttClient.getRawdataTopic(deviceId, shutterSensorId); // '/v1/device/25/sensor/shutter/rawdata'
+		// the handlers run out of the MQTT thread, the lamp is not delayed by the camera
+		DispatchingListener dispatching = new DispatchingListener(new OpenMqttClient.ListenerAdapter(), dispatcher, 2, 100);
 		
-		mqtt.setTopics(Arrays.asList(lampTopic, braceletTopic, shutterTopic));
+		// '/v1/device/25/sensor/lamp/rawdata'
+		mqtt.subscribe(deviceId, lampSensorId, dispatching.wrap(new OpenMqttClient.Handler() {
+			public void onRawdata(String topic, Rawdata rawdata) {
+				LOG.info("onLamp - {}", JsonUtils.toJson(rawdata));
+				
+				String value = rawdata.getValue()[0];
+				
+				lamp.setState(isOn(value)? PinState.LOW : PinState.HIGH);
+			}
+		}));
 		
-		mqtt.setListener(new OpenMqttClient.ListenerAdapter() {			
-			@Override
+		// '/v1/device/25/sensor/bracelet/rawdata'
+		mqtt.subscribe(deviceId, braceletSensorId, dispatching.wrap(new OpenMqttClient.Handler() {
 			public void onRawdata(String topic, Rawdata rawdata) {
-				handle(rawdata);
+				LOG.info("onBracelet - {}", JsonUtils.toJson(rawdata));
+				
+				vibrateBracelet(); // to your bracelet (www.mi.com [Xiaomi China])
 			}
-		});
+		}));
+		
+		// '/v1/device/25/sensor/shutter/rawdata'
+		mqtt.subscribe(deviceId, shutterSensorId, dispatching.wrap(new OpenMqttClient.Handler() {
+			public void onRawdata(String topic, Rawdata rawdata) {
+				LOG.info("onShutter - {}", JsonUtils.toJson(rawdata));
+				
+				saveSnapshot(); // take a picture
+			}
+		}));
 		
 		mqtt.start(); // wait for incoming message from IoT platform
 	}
@@ -142,25 +172,6 @@ public class Main {
 		return "1".equals(value) || "on".equalsIgnoreCase(value); // TODO - hardcode is NG
 	}
 	
-	protected void handle(Rawdata rawdata) {
-		LOG.info("onRawdata - {}", JsonUtils.toJson(rawdata));
-		
-		if (deviceId.equals(rawdata.getDeviceId())) {
-			String id = rawdata.getId();
-			if (lampSensorId.equals(id)) {
-				String value = rawdata.getValue()[0];
-				
-				lamp.setState(isOn(value)? PinState.LOW : PinState.HIGH);
-				
-			} else if (braceletSensorId.equals(id)) {				
-				vibrateBracelet(); // to your bracelet (www.mi.com [Xiaomi China])
-				
-			} else if (shutterSensorId.equals(id)) {
-				saveSnapshot(); // take a picture
-			}
-		}
-	}
-	
 	protected void onButtonStateChanged(PinState state) {
 		saveButtonValue(state); // save rawdata in background
 		
@@ -169,21 +180,11 @@ public class Main {
 		}
 	}
 	
-	protected void saveButtonValue(final PinState state) {
-		executor.execute(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					String value = (PinState.HIGH == state)? "1" : "0";				
-					restful.saveRawdata(deviceId, buttonSensorId, value);
-					
-					LOG.info("Rawdata is saved");
-					
-				} catch (Exception e) {
-					LOG.error(e.getMessage(), e);
-				}
-			}
-		});
+	protected void saveButtonValue(PinState state) {
+		String value = (PinState.HIGH == state)? "1" : "0";
+		if (!writer.write(deviceId, buttonSensorId, value)) { // save rawdata in background
+			LOG.warn("Rawdata is dropped");
+		}
 	}
 	
 	protected void saveSnapshot() {
@@ -1,8 +1,78 @@
 package com.cht.iot.persistence.entity.data;
 
 import java.io.Serializable;
+import java.util.Comparator;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+
+import com.cht.iot.util.IsoTime;
+
+/**
+ * The time handling shared by Rawdata and Record.
+ */
 public class Material implements Serializable {
 	private static final long serialVersionUID = 1L;	
+	
+	public static final long NO_TIME = Long.MIN_VALUE;
+	static final long UNPARSED = Long.MIN_VALUE + 1; // 'time' is not yet parsed
+	
+	/**
+	 * Sort by the epoch time, the ones without time go first.
+	 */
+	public static final Comparator<Material> TIME_ORDER = new Comparator<Material>() {
+		@Override
+		public int compare(Material m1, Material m2) {
+			long t1 = m1.getTimestamp();
+			long t2 = m2.getTimestamp();
+			
+			return (t1 < t2)? -1 : (t1 == t2)? 0 : 1;
+		}
+	};
+	
+	String time;				// as it was given, or formatted from 'timestamp' on demand
+	long timestamp = NO_TIME;	// parsed from 'time' on demand
+	
+	/**
+	 * Timestamp (UTC). It's ISO-8601 format.
+	 * 
+	 * @return		the time as it was set or received, even if it can't be parsed.
+	 */
+	public String getTime() {
+		if ((time == null) && (timestamp != NO_TIME)) {
+			time = IsoTime.format(timestamp);
+		}
+		
+		return time;
+	}
 
+	public void setTime(String time) {
+		this.time = time;
+		this.timestamp = (time != null)? UNPARSED : NO_TIME;
+	}
+	
+	/**
+	 * Timestamp in epoch millisecond. The ISO-8601 time is parsed once.
+	 * 
+	 * @return		NO_TIME if there is no time or it can't be parsed.
+	 */
+	@JsonIgnore
+	public long getTimestamp() {
+		if (timestamp == UNPARSED) {
+			Long t = IsoTime.tryParse(time);
+			timestamp = (t != null)? t : NO_TIME;
+		}
+		
+		return timestamp;
+	}
+	
+	/**
+	 * Set the timestamp in epoch millisecond. The ISO-8601 time is formatted when someone asks for it.
+	 * 
+	 * @param timestamp		NO_TIME to clear the time.
+	 */
+	@JsonIgnore
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+		this.time = null;
+	}
 }
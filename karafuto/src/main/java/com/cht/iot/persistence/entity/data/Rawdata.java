@@ -1,14 +1,27 @@
 package com.cht.iot.persistence.entity.data;
 
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.annotate.JsonPropertyOrder;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+@JsonPropertyOrder({ "id", "deviceId", "time", "lat", "lon", "value" })
 public class Rawdata extends Material {
 	private static final long serialVersionUID = 1L;
 	
 	String id;
 	String deviceId;
-	String time;
 	Float lat;
 	Float lon;
-	String[] value;
+	String[] value;		// formatted from the numbers on demand
+	double[] doubles;	// parsed on demand, NaN is not a number
+	long[] longs;		// parsed on demand
 
 	public Rawdata() {
 	}
@@ -39,19 +52,6 @@ public class Rawdata extends Material {
 		this.deviceId = deviceId;
 	}
 
-	/**
-	 * Timestamp (UTC). It's ISO-8601 format.
-	 * 
-	 * @return
-	 */
-	public String getTime() {
-		return time;
-	}
-
-	public void setTime(String time) {
-		this.time = time;
-	}
-
 	/**
 	 * [optional] Latitude.
 	 * 
@@ -83,11 +83,205 @@ public class Rawdata extends Material {
 	 * 
 	 * @return
 	 */
+	@JsonIgnore
 	public String[] getValue() {
+		if (value == null) {
+			if (longs != null) {
+				value = new String[longs.length];
+				for (int i = 0; i < longs.length; i++) {
+					value[i] = Long.toString(longs[i]);
+				}
+			} else if (doubles != null) {
+				value = new String[doubles.length];
+				for (int i = 0; i < doubles.length; i++) {
+					value[i] = toString(doubles[i]);
+				}
+			}
+		}
+		
 		return value;
 	}
 
+	@JsonProperty("value")
 	public void setValue(String[] value) {
 		this.value = value;
+		this.doubles = null;
+		this.longs = null;
+	}
+	
+	/**
+	 * Rawdata value as numbers, e.g. for the 'gauge' sensor. The strings are parsed once.
+	 * 
+	 * @return		NaN if the string is not a number.
+	 */
+	@JsonIgnore
+	public double[] getDoubleValue() {
+		if (doubles == null) {
+			if (longs != null) {
+				doubles = new double[longs.length];
+				for (int i = 0; i < longs.length; i++) {
+					doubles[i] = longs[i];
+				}
+			} else if (value != null) {
+				doubles = new double[value.length];
+				for (int i = 0; i < value.length; i++) {
+					doubles[i] = parseDouble(value[i]);
+				}
+			}
+		}
+		
+		return doubles;
+	}
+	
+	@JsonIgnore
+	public void setDoubleValue(double[] doubles) {
+		this.value = null;
+		this.doubles = doubles;
+		this.longs = null;
+	}
+	
+	/**
+	 * Rawdata value as integers, e.g. for the 'counter' sensor. The strings are parsed once, the decimals are truncated.
+	 * 
+	 * @return		0 if the string is not a number, use isNumber() to tell it from a real 0.
+	 */
+	@JsonIgnore
+	public long[] getLongValue() {
+		if (longs == null) {
+			if (value != null) {
+				longs = new long[value.length];
+				for (int i = 0; i < value.length; i++) {
+					longs[i] = parseLong(value[i]);
+				}
+			} else if (doubles != null) {
+				longs = new long[doubles.length];
+				for (int i = 0; i < doubles.length; i++) {
+					longs[i] = (long) doubles[i]; // NaN is 0
+				}
+			}
+		}
+		
+		return longs;
+	}
+	
+	@JsonIgnore
+	public void setLongValue(long[] longs) {
+		this.value = null;
+		this.doubles = null;
+		this.longs = longs;
+	}
+	
+	/**
+	 * Is the value a number? False if it's missing or can't be parsed, then getLongValue() gives 0 and getDoubleValue() gives NaN.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isNumber(int index) {
+		if ((value == null) && (longs != null)) { // set as integers
+			return true;
+		}
+		
+		double[] d = getDoubleValue();
+		
+		return (d != null) && (!Double.isNaN(d[index]));
+	}
+	
+	@JsonProperty("value")
+	@JsonSerialize(using = ValueSerializer.class, include = JsonSerialize.Inclusion.NON_NULL) // or it is ALWAYS
+	Object getJsonValue() { // what we have, not converted
+		return (value != null)? value : (longs != null)? longs : doubles;
+	}
+	
+	static double parseDouble(String s) {
+		if (s != null) {
+			try {
+				return Double.parseDouble(s);
+				
+			} catch (NumberFormatException e) {
+			}
+		}
+		
+		return Double.NaN;
+	}
+	
+	static long parseLong(String s) {
+		if (s != null) {
+			try {
+				return Long.parseLong(s);
+				
+			} catch (NumberFormatException e) {
+				return (long) parseDouble(s);
+			}
+		}
+		
+		return 0L;
+	}
+	
+	static boolean isIntegral(double d) {
+		return (d == Math.rint(d)) && (Math.abs(d) < 1e15); // exact in long, printed without '.0'
+	}
+	
+	static String toString(double d) {
+		if (Double.isNaN(d)) {
+			return null;
+		}
+		
+		return isIntegral(d)? Long.toString((long) d) : Double.toString(d);
+	}
+	
+	/**
+	 * Write the numbers as the JSON strings of the value array. The integers are formatted without creating the String.
+	 */
+	static class ValueSerializer extends JsonSerializer<Object> {
+		
+		@Override
+		public void serialize(Object value, JsonGenerator jg, SerializerProvider provider) throws IOException, JsonProcessingException {
+			char[] buf = new char[20];
+			
+			jg.writeStartArray();
+			if (value instanceof String[]) {
+				for (String s : (String[]) value) {
+					jg.writeString(s);
+				}
+			} else if (value instanceof long[]) {
+				for (long l : (long[]) value) {
+					writeLong(jg, buf, l);
+				}
+			} else if (value instanceof double[]) {
+				for (double d : (double[]) value) {
+					if (Double.isNaN(d)) {
+						jg.writeNull();
+						
+					} else if (isIntegral(d)) {
+						writeLong(jg, buf, (long) d);
+						
+					} else {
+						jg.writeString(Double.toString(d));
+					}
+				}
+			}
+			jg.writeEndArray();
+		}
+		
+		static void writeLong(JsonGenerator jg, char[] buf, long l) throws IOException {
+			if (l == Long.MIN_VALUE) {
+				jg.writeString(Long.toString(l)); // can't be negated
+				return;
+			}
+			
+			int i = buf.length;
+			long n = Math.abs(l);
+			do {
+				buf[--i] = (char) ('0' + (n % 10L));
+				n /= 10L;
+			} while (n > 0L);
+			
+			if (l < 0L) {
+				buf[--i] = '-';
+			}
+			
+			jg.writeString(buf, i, buf.length - i);
+		}
 	}
 }
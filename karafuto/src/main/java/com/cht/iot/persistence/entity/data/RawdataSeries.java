@@ -0,0 +1,360 @@
+package com.cht.iot.persistence.entity.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The rawdata of one sensor in columns - the epoch times, the values as doubles and the optional locations.
+ * There is no object per rawdata, so a long history takes about 1/10 of the memory of Rawdata[].
+ * 
+ * The values of each rawdata take 'width' slots (the longest value array), the missing ones and the strings
+ * which are not numbers are NaN. The rawdata are expected to be added in time order for indexOf().
+ * 
+ * A slice shares the columns with its series, you can't add the rawdata into it.
+ */
+public class RawdataSeries implements Iterable<Rawdata> {
+	final String deviceId;
+	final String sensorId;
+	
+	long[] times;
+	int width;			// values per rawdata
+	double[] values;	// rawdata i is at [i * width, (i + 1) * width)
+	float[] lats;		// null if no rawdata has the location
+	float[] lons;
+	
+	final int offset;	// of the slice
+	int size;
+	final boolean slice;
+	
+	public RawdataSeries(String deviceId, String sensorId) {
+		this(deviceId, sensorId, 16);
+	}
+	
+	public RawdataSeries(String deviceId, String sensorId, int capacity) {
+		this.deviceId = deviceId;
+		this.sensorId = sensorId;
+		
+		times = new long[Math.max(capacity, 1)];
+		width = 1;
+		values = new double[times.length];
+		
+		offset = 0;
+		slice = false;
+	}
+	
+	RawdataSeries(RawdataSeries series, int from, int to) {
+		deviceId = series.deviceId;
+		sensorId = series.sensorId;
+		
+		times = series.times;
+		width = series.width;
+		values = series.values;
+		lats = series.lats;
+		lons = series.lons;
+		
+		offset = series.offset + from;
+		size = to - from;
+		slice = true;
+	}
+	
+	public String getDeviceId() {
+		return deviceId;
+	}
+	
+	public String getSensorId() {
+		return sensorId;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Number of the values of each rawdata.
+	 * 
+	 * @return
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	// ======
+	
+	/**
+	 * Append a rawdata.
+	 * 
+	 * @param time		epoch time in millisecond.
+	 * @param value
+	 * @param count		number of the values.
+	 * @param lat		NaN if there is no location.
+	 * @param lon
+	 */
+	public void add(long time, double[] value, int count, float lat, float lon) {
+		if (slice) {
+			throw new UnsupportedOperationException("Can't add into a slice");
+		}
+		
+		if (count > width) {
+			widen(count);
+		}
+		
+		if (size == times.length) {
+			grow();
+		}
+		
+		times[size] = time;
+		
+		int base = size * width;
+		System.arraycopy(value, 0, values, base, count);
+		for (int i = count; i < width; i++) {
+			values[base + i] = Double.NaN;
+		}
+		
+		if (!Float.isNaN(lat) || !Float.isNaN(lon)) {
+			if (lats == null) {
+				lats = new float[times.length];
+				lons = new float[times.length];
+				Arrays.fill(lats, 0, size, Float.NaN);
+				Arrays.fill(lons, 0, size, Float.NaN);
+			}
+		}
+		
+		if (lats != null) {
+			lats[size] = lat;
+			lons[size] = lon;
+		}
+		
+		size += 1;
+	}
+	
+	public void add(long time, double value) {
+		add(time, new double[] { value }, 1, Float.NaN, Float.NaN);
+	}
+	
+	/**
+	 * Append a rawdata, the strings of the value are parsed.
+	 * 
+	 * @param rawdata
+	 */
+	public void add(Rawdata rawdata) {
+		double[] value = rawdata.getDoubleValue();
+		if (value == null) {
+			value = new double[0];
+		}
+		
+		Float lat = rawdata.getLat();
+		Float lon = rawdata.getLon();
+		
+		add(rawdata.getTimestamp(), value, value.length, (lat != null)? lat : Float.NaN, (lon != null)? lon : Float.NaN);
+	}
+	
+	protected void grow() {
+		int capacity = times.length * 2;
+		
+		times = Arrays.copyOf(times, capacity);
+		values = Arrays.copyOf(values, capacity * width);
+		if (lats != null) {
+			lats = Arrays.copyOf(lats, capacity);
+			lons = Arrays.copyOf(lons, capacity);
+		}
+	}
+	
+	protected void widen(int w) {
+		double[] wider = new double[times.length * w];
+		Arrays.fill(wider, Double.NaN);
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(values, i * width, wider, i * w, width);
+		}
+		
+		values = wider;
+		width = w;
+	}
+	
+	/**
+	 * Release the unused capacity.
+	 */
+	public void trimToSize() {
+		if (!slice && (size < times.length)) {
+			int capacity = Math.max(size, 1);
+			
+			times = Arrays.copyOf(times, capacity);
+			values = Arrays.copyOf(values, capacity * width);
+			if (lats != null) {
+				lats = Arrays.copyOf(lats, capacity);
+				lons = Arrays.copyOf(lons, capacity);
+			}
+		}
+	}
+	
+	// ======
+	
+	protected int check(int index) {
+		if ((index < 0) || (index >= size)) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		
+		return offset + index;
+	}
+	
+	/**
+	 * Epoch time in millisecond.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public long getTime(int index) {
+		return times[check(index)];
+	}
+	
+	/**
+	 * The first value.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public double getValue(int index) {
+		return values[check(index) * width];
+	}
+	
+	public double getValue(int index, int i) {
+		if ((i < 0) || (i >= width)) {
+			throw new IndexOutOfBoundsException("Value: " + i + ", Width: " + width);
+		}
+		
+		return values[(check(index) * width) + i];
+	}
+	
+	/**
+	 * Copy the values of the rawdata.
+	 * 
+	 * @param index
+	 * @param value		'width' doubles at least.
+	 */
+	public void getValue(int index, double[] value) {
+		System.arraycopy(values, check(index) * width, value, 0, width);
+	}
+	
+	/**
+	 * Latitude.
+	 * 
+	 * @param index
+	 * @return		NaN if there is no location.
+	 */
+	public float getLat(int index) {
+		int i = check(index);
+		return (lats != null)? lats[i] : Float.NaN;
+	}
+	
+	public float getLon(int index) {
+		int i = check(index);
+		return (lons != null)? lons[i] : Float.NaN;
+	}
+	
+	/**
+	 * Create the Rawdata of the index.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public Rawdata getRawdata(int index) {
+		int i = check(index);
+		
+		Rawdata rawdata = new Rawdata();
+		rawdata.setId(sensorId);
+		rawdata.setDeviceId(deviceId);
+		rawdata.setTimestamp(times[i]);
+		rawdata.setDoubleValue(Arrays.copyOfRange(values, i * width, (i + 1) * width));
+		if ((lats != null) && !Float.isNaN(lats[i])) {
+			rawdata.setLat(lats[i]);
+			rawdata.setLon(lons[i]);
+		}
+		
+		return rawdata;
+	}
+	
+	// ======
+	
+	/**
+	 * Binary search the first rawdata at or after the time.
+	 * 
+	 * @param time
+	 * @return		size() if all the rawdata are before the time.
+	 */
+	public int indexOf(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[offset + mid] < time) {
+				low = mid + 1;
+				
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * The rawdata in [from, to) by the index.
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public RawdataSeries slice(int from, int to) {
+		if ((from < 0) || (to > size) || (from > to)) {
+			throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size);
+		}
+		
+		return new RawdataSeries(this, from, to);
+	}
+	
+	/**
+	 * The rawdata in [start, end) by the epoch time.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public RawdataSeries slice(long start, long end) {
+		int from = indexOf(start);
+		
+		return slice(from, Math.max(from, indexOf(end)));
+	}
+	
+	/**
+	 * Iterate the rawdata as Rawdata objects. Use the getters with the index to avoid the objects.
+	 */
+	@Override
+	public Iterator<Rawdata> iterator() {
+		return new Iterator<Rawdata>() {
+			int index = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+			
+			@Override
+			public Rawdata next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				
+				return getRawdata(index++);
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
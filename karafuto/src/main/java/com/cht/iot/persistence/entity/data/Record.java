@@ -3,10 +3,12 @@ package com.cht.iot.persistence.entity.data;
 import java.util.Map;
 
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonPropertyOrder;
 
 import com.cht.iot.persistence.entity.api.ISheet;
 
 @JsonIgnoreProperties({ "projectId", "sheet" })
+@JsonPropertyOrder({ "id", "deviceId", "time", "value" })
 public class Record extends Material {
 	private static final long serialVersionUID = 1L;
 	
@@ -14,7 +16,6 @@ public class Record extends Material {
 	transient Long projectId; // assign by internal service
 	transient String deviceId; // assign by internal service
 	transient ISheet sheet; // assign by internal service
-	String time;
 	Map<String, String> value;
 
 	public Record() {
@@ -52,14 +53,6 @@ public class Record extends Material {
 		this.sheet = sheet;
 	}
 
-	public String getTime() {
-		return time;
-	}
-
-	public void setTime(String time) {
-		this.time = time;
-	}
-	
 	public Map<String, String> getValue() {
 		return value;
 	}
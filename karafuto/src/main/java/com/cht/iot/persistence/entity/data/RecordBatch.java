@@ -0,0 +1,522 @@
+package com.cht.iot.persistence.entity.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import com.cht.iot.persistence.entity.api.IColumn;
+import com.cht.iot.persistence.entity.api.ISheet;
+import com.cht.iot.util.IsoTime;
+
+/**
+ * The records of one sheet in columns. The column names are resolved to the indexes once by the sheet,
+ * then each column is kept in a primitive array by its type - 'integer' in long[], 'float' in double[],
+ * 'datetime' in long[] (epoch time) and the others in String[]. There is no Map per record.
+ * 
+ * The cell which can't be parsed by the column type is kept as it is. The parsed cells are NOT - their source
+ * string is dropped and they are given back (and saved) in the canonical form, e.g. "1.50" becomes "1.5",
+ * "007" becomes "7" and the datetime is in UTC. Use Record if the exact strings matter.
+ */
+public class RecordBatch implements Iterable<Record> {
+	final String sheetId;
+	
+	final Column time;
+	final Column[] columns;
+	final Map<String, Integer> indexes = new HashMap<String, Integer>(); // by column name
+	
+	int capacity;
+	int size;
+	
+	public RecordBatch(ISheet sheet) {
+		this(sheet, 16);
+	}
+	
+	public RecordBatch(ISheet sheet, int capacity) {
+		sheetId = sheet.getId();
+		
+		this.capacity = Math.max(capacity, 1);
+		
+		time = new Column("time", Type.Datetime, this.capacity);
+		
+		IColumn[] ics = (sheet.getColumns() != null)? sheet.getColumns() : new IColumn[0];
+		columns = new Column[ics.length];
+		for (int i = 0; i < ics.length; i++) {
+			columns[i] = new Column(ics[i].getName(), Type.of(ics[i].getType()), this.capacity);
+			indexes.put(ics[i].getName(), i);
+		}
+	}
+	
+	public String getSheetId() {
+		return sheetId;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int getColumnCount() {
+		return columns.length;
+	}
+	
+	public String getColumnName(int column) {
+		return columns[column].name;
+	}
+	
+	public Type getColumnType(int column) {
+		return columns[column].type;
+	}
+	
+	/**
+	 * Index of the column.
+	 * 
+	 * @param name
+	 * @return		-1 if the sheet has no such column.
+	 */
+	public int indexOf(String name) {
+		Integer i = indexes.get(name);
+		return (i != null)? i : -1;
+	}
+	
+	// ======
+	
+	/**
+	 * Append an empty record.
+	 * 
+	 * @param timestamp		epoch time in millisecond, Record.NO_TIME if there is no time.
+	 * @return				the row index
+	 */
+	public int add(long timestamp) {
+		if (size == capacity) {
+			capacity *= 2;
+			
+			time.grow(capacity);
+			for (Column c : columns) {
+				c.grow(capacity);
+			}
+		}
+		
+		int row = size++;
+		if (timestamp != Record.NO_TIME) {
+			time.setLong(row, timestamp);
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Append the record, the cells are parsed by the column types.
+	 * 
+	 * @param record
+	 * @return			the row index
+	 * @throws IllegalArgumentException		the record has a column which the sheet doesn't have.
+	 */
+	public int add(Record record) {
+		Map<String, String> value = record.getValue();
+		if (value != null) {
+			for (String name : value.keySet()) {
+				if (indexOf(name) < 0) {
+					throw new IllegalArgumentException("Unknown column - " + name);
+				}
+			}
+		}
+		
+		int row = add(Record.NO_TIME);
+		if (record.getTime() != null) {
+			time.set(row, record.getTime());
+		}
+		
+		if (value != null) {
+			for (Map.Entry<String, String> e : value.entrySet()) {
+				setString(row, indexOf(e.getKey()), e.getValue());
+			}
+		}
+		
+		return row;
+	}
+	
+	protected int check(int row) {
+		if ((row < 0) || (row >= size)) {
+			throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Epoch time of the record.
+	 * 
+	 * @param row
+	 * @return		Record.NO_TIME if there is no time (or it can't be parsed).
+	 */
+	public long getTime(int row) {
+		return time.present.get(check(row))? time.longs[row] : Record.NO_TIME;
+	}
+	
+	public void setTime(int row, long timestamp) {
+		time.clear(check(row));
+		if (timestamp != Record.NO_TIME) {
+			time.setLong(row, timestamp);
+		}
+	}
+	
+	/**
+	 * Set the cell from the string, it's parsed by the column type.
+	 * 
+	 * @param row
+	 * @param column
+	 * @param value		null to clear the cell.
+	 */
+	public void setString(int row, int column, String value) {
+		Column c = columns[column];
+		c.clear(check(row));
+		if (value != null) {
+			c.set(row, value);
+		}
+	}
+	
+	/**
+	 * Set the cell of the 'integer', 'float' or 'datetime' column.
+	 * 
+	 * @param row
+	 * @param column
+	 * @param value
+	 */
+	public void setLong(int row, int column, long value) {
+		Column c = columns[column];
+		c.clear(check(row));
+		if (c.type == Type.Float) {
+			c.setDouble(row, value);
+			
+		} else if (c.type == Type.Text) {
+			c.strings[row] = Long.toString(value);
+			
+		} else {
+			c.setLong(row, value);
+		}
+	}
+	
+	/**
+	 * Set the cell of the 'float' column.
+	 * 
+	 * @param row
+	 * @param column
+	 * @param value
+	 */
+	public void setDouble(int row, int column, double value) {
+		Column c = columns[column];
+		c.clear(check(row));
+		if (c.type == Type.Float) {
+			c.setDouble(row, value);
+			
+		} else if (c.type == Type.Text) {
+			c.strings[row] = Rawdata.toString(value);
+			
+		} else {
+			c.setLong(row, (long) value);
+		}
+	}
+	
+	/**
+	 * Is the cell a number (or an epoch time) ? False if the cell is empty, a string or can't be parsed.
+	 * 
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public boolean isNumber(int row, int column) {
+		return columns[column].present.get(check(row));
+	}
+	
+	/**
+	 * The cell of the 'integer' or 'datetime' column.
+	 * 
+	 * @param row
+	 * @param column
+	 * @return			0 if it's not a number.
+	 */
+	public long getLong(int row, int column) {
+		Column c = columns[column];
+		if (!c.present.get(check(row))) {
+			return 0L;
+		}
+		
+		return (c.type == Type.Float)? (long) c.doubles[row] : c.longs[row];
+	}
+	
+	/**
+	 * The cell of the 'float' or 'integer' column.
+	 * 
+	 * @param row
+	 * @param column
+	 * @return			NaN if it's not a number.
+	 */
+	public double getDouble(int row, int column) {
+		Column c = columns[column];
+		if (!c.present.get(check(row))) {
+			return Double.NaN;
+		}
+		
+		return (c.type == Type.Float)? c.doubles[row] : c.longs[row];
+	}
+	
+	/**
+	 * The cell as a string.
+	 * 
+	 * @param row
+	 * @param column
+	 * @return			null if the cell is empty.
+	 */
+	public String getString(int row, int column) {
+		return columns[column].get(check(row));
+	}
+	
+	/**
+	 * Create the Record of the row.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	public Record getRecord(int row) {
+		Record record = new Record();
+		record.setId(sheetId);
+		record.setTime(time.get(check(row)));
+		
+		Map<String, String> value = new LinkedHashMap<String, String>();
+		for (Column c : columns) {
+			String s = c.get(row);
+			if (s != null) {
+				value.put(c.name, s);
+			}
+		}
+		record.setValue(value);
+		
+		return record;
+	}
+	
+	/**
+	 * Write the row as the JSON of Record. The numbers are written without creating the strings.
+	 * 
+	 * @param row
+	 * @param jg
+	 * @throws IOException
+	 */
+	public void writeJson(int row, JsonGenerator jg) throws IOException {
+		char[] buf = new char[IsoTime.LENGTH];
+		
+		jg.writeStartObject();
+		jg.writeStringField("id", sheetId);
+		if (!time.isEmpty(check(row))) {
+			jg.writeFieldName("time");
+			time.write(row, jg, buf);
+		}
+		
+		jg.writeObjectFieldStart("value");
+		for (Column c : columns) {
+			if (!c.isEmpty(row)) {
+				jg.writeFieldName(c.name);
+				c.write(row, jg, buf);
+			}
+		}
+		jg.writeEndObject();
+		
+		jg.writeEndObject();
+	}
+	
+	/**
+	 * Iterate the rows as Record objects. Use the getters with the row index to avoid the objects.
+	 */
+	@Override
+	public Iterator<Record> iterator() {
+		return new Iterator<Record>() {
+			int row = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return row < size;
+			}
+			
+			@Override
+			public Record next() {
+				if (row >= size) {
+					throw new NoSuchElementException();
+				}
+				
+				return getRecord(row++);
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	// ======
+	
+	public enum Type {
+		Text, Integer, Float, Datetime;
+		
+		/**
+		 * The type of IColumn.getType().
+		 * 
+		 * @param type
+		 * @return
+		 */
+		public static Type of(String type) {
+			if (type != null) {
+				String t = type.toLowerCase();
+				if (t.equals("integer") || t.equals("int") || t.equals("long")) {
+					return Integer;
+					
+				} else if (t.equals("float") || t.equals("double") || t.equals("decimal") || t.equals("number")) {
+					return Float;
+					
+				} else if (t.equals("datetime") || t.equals("timestamp") || t.equals("date")) {
+					return Datetime;
+				}
+			}
+			
+			return Text;
+		}
+	}
+	
+	static class Column {
+		final String name;
+		final Type type;
+		
+		long[] longs;		// Integer and Datetime
+		double[] doubles;	// Float
+		String[] strings;	// Text, or the cells of the others which can't be parsed (allocated on demand)
+		final BitSet present = new BitSet(); // the number is set
+		
+		Column(String name, Type type, int capacity) {
+			this.name = name;
+			this.type = type;
+			
+			if (type == Type.Float) {
+				doubles = new double[capacity];
+				
+			} else if (type == Type.Text) {
+				strings = new String[capacity];
+				
+			} else {
+				longs = new long[capacity];
+			}
+		}
+		
+		void grow(int capacity) {
+			if (longs != null) {
+				longs = Arrays.copyOf(longs, capacity);
+			}
+			
+			if (doubles != null) {
+				doubles = Arrays.copyOf(doubles, capacity);
+			}
+			
+			if (strings != null) {
+				strings = Arrays.copyOf(strings, capacity);
+			}
+		}
+		
+		void clear(int row) {
+			present.clear(row);
+			if (strings != null) {
+				strings[row] = null;
+			}
+		}
+		
+		boolean isEmpty(int row) {
+			return !present.get(row) && ((strings == null) || (strings[row] == null));
+		}
+		
+		void setLong(int row, long value) {
+			longs[row] = value;
+			present.set(row);
+		}
+		
+		void setDouble(int row, double value) {
+			doubles[row] = value;
+			present.set(row);
+		}
+		
+		void set(int row, String s) {
+			try {
+				if (type == Type.Integer) {
+					setLong(row, Long.parseLong(s.trim()));
+					return;
+					
+				} else if (type == Type.Float) {
+					double d = Double.parseDouble(s.trim());
+					if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+						setDouble(row, d);
+						return;
+					}
+					
+				} else if (type == Type.Datetime) {
+					setLong(row, IsoTime.parse(s.trim()));
+					return;
+				}
+			} catch (IllegalArgumentException e) { // NumberFormatException too
+			}
+			
+			setRaw(row, s);
+		}
+		
+		/**
+		 * Keep the string as it is.
+		 */
+		void setRaw(int row, String s) {
+			if (strings == null) {
+				strings = new String[(longs != null)? longs.length : doubles.length];
+			}
+			
+			strings[row] = s;
+		}
+		
+		String get(int row) {
+			if (present.get(row)) {
+				if (type == Type.Float) {
+					return Rawdata.toString(doubles[row]);
+					
+				} else if (type == Type.Datetime) {
+					return IsoTime.format(longs[row]);
+					
+				} else {
+					return Long.toString(longs[row]);
+				}
+			}
+			
+			return (strings != null)? strings[row] : null;
+		}
+		
+		void write(int row, JsonGenerator jg, char[] buf) throws IOException {
+			if (!present.get(row)) {
+				jg.writeString(strings[row]);
+				
+			} else if (type == Type.Datetime) {
+				IsoTime.format(longs[row], buf, 0);
+				jg.writeString(buf, 0, IsoTime.LENGTH);
+				
+			} else if (type == Type.Integer) {
+				Rawdata.ValueSerializer.writeLong(jg, buf, longs[row]);
+				
+			} else if (Rawdata.isIntegral(doubles[row])) {
+				Rawdata.ValueSerializer.writeLong(jg, buf, (long) doubles[row]);
+				
+			} else {
+				jg.writeString(Double.toString(doubles[row]));
+			}
+		}
+	}
+}
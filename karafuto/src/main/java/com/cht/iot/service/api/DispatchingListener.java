@@ -0,0 +1,255 @@
+package com.cht.iot.service.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.service.api.OpenMqttClient.Handler;
+import com.cht.iot.service.api.OpenMqttClient.Listener;
+
+/**
+ * Call the listener by the executor instead of the MQTT callback thread, so a slow listener doesn't stall
+ * the incoming messages and the keep alive.
+ *
+ * The events are striped by the topic (device and sensor). The events of the same topic are handled one by one in order,
+ * the events of the different stripes are handled in parallel. Each stripe has a bounded queue, the new event is dropped
+ * if the queue is full.
+ */
+public class DispatchingListener implements Listener {
+	static final Logger LOG = LoggerFactory.getLogger(DispatchingListener.class);
+
+	final Listener listener;
+	final Executor executor;
+	final Stripe[] stripes;
+
+	int batchSize = 64; // events a stripe handles before giving the thread to the others
+
+	final AtomicLong dispatched = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong lag = new AtomicLong();
+	volatile long lastLag;
+	volatile long maxLag;
+
+	/**
+	 * Create the dispatching listener.
+	 *
+	 * @param listener		the real listener
+	 * @param executor		it's better to have as many threads as the stripes
+	 * @param stripes		number of the topic groups handled in parallel
+	 * @param capacity		max waiting events of a stripe
+	 */
+	public DispatchingListener(Listener listener, Executor executor, int stripes, int capacity) {
+		if ((stripes < 1) || (capacity < 1)) {
+			throw new IllegalArgumentException("Stripes and capacity must be positive");
+		}
+
+		this.listener = listener;
+		this.executor = executor;
+
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe(capacity);
+		}
+	}
+
+	// ======
+
+	@Override
+	public void onRawdata(final String topic, final Rawdata rawdata) {
+		dispatch(topic, new Runnable() {
+			@Override
+			public void run() {
+				listener.onRawdata(topic, rawdata);
+			}
+		});
+	}
+
+	@Override
+	public void onReconfigure(final String topic, final String apiKey) {
+		dispatch(topic, new Runnable() {
+			@Override
+			public void run() {
+				listener.onReconfigure(topic, apiKey);
+			}
+		});
+	}
+
+	@Override
+	public void onSetDeviceId(final String topic, final String apiKey, final String deviceId) {
+		dispatch(topic, new Runnable() {
+			@Override
+			public void run() {
+				listener.onSetDeviceId(topic, apiKey, deviceId);
+			}
+		});
+	}
+
+	/**
+	 * Let the handler (of OpenMqttClient.subscribe()) be called by the executor too.
+	 * It shares the stripes (and the metrics) with the listener.
+	 *
+	 * @param handler
+	 * @return
+	 */
+	public Handler wrap(final Handler handler) {
+		return new Handler() {
+			@Override
+			public void onRawdata(final String topic, final Rawdata rawdata) {
+				dispatch(topic, new Runnable() {
+					@Override
+					public void run() {
+						handler.onRawdata(topic, rawdata);
+					}
+				});
+			}
+		};
+	}
+
+	protected void dispatch(String topic, Runnable runnable) {
+		Stripe stripe = stripes[(topic.hashCode() & 0x7fffffff) % stripes.length];
+
+		if (!stripe.queue.offer(new Event(runnable))) {
+			dropped.incrementAndGet();
+
+			LOG.warn("Listener is too slow, the event is dropped - {}", topic);
+
+			return;
+		}
+
+		stripe.schedule();
+	}
+
+	// ======
+
+	/**
+	 * Number of the events waiting in the queues.
+	 *
+	 * @return
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Stripe stripe : stripes) {
+			depth += stripe.queue.size();
+		}
+
+		return depth;
+	}
+
+	/**
+	 * Number of the events handled by the listener.
+	 *
+	 * @return
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Number of the events dropped because the queue is full.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of the events which the listener throws exception.
+	 *
+	 * @return
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Average time (in millisecond) from the message arrived to the listener is called.
+	 *
+	 * @return
+	 */
+	public double getAverageLag() {
+		long n = dispatched.get() + failed.get();
+		return (n == 0L)? 0.0 : (lag.get() / 1000000.0) / n;
+	}
+
+	public long getLastLag() {
+		return lastLag / 1000000L;
+	}
+
+	public long getMaxLag() {
+		return maxLag / 1000000L;
+	}
+
+	// ======
+
+	static class Event {
+		final Runnable runnable;
+		final long arrived = System.nanoTime();
+
+		Event(Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
+
+	class Stripe implements Runnable {
+		final BlockingQueue<Event> queue;
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Stripe(int capacity) {
+			queue = new ArrayBlockingQueue<Event>(capacity);
+		}
+
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) { // only one thread handles the stripe at a time
+				try {
+					executor.execute(this);
+
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+
+					LOG.error("Executor rejects the events", e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				Event event;
+				for (int i = 0; (i < batchSize) && ((event = queue.poll()) != null); i++) {
+					long waited = System.nanoTime() - event.arrived;
+					lag.addAndGet(waited);
+					lastLag = waited;
+					if (waited > maxLag) {
+						maxLag = waited;
+					}
+
+					try {
+						event.runnable.run();
+
+						dispatched.incrementAndGet();
+
+					} catch (Exception e) {
+						failed.incrementAndGet();
+
+						LOG.error("Listener is failed", e);
+					}
+				}
+			} finally {
+				scheduled.set(false);
+
+				if (!queue.isEmpty()) { // more events, or the new one came while we were leaving
+					schedule();
+				}
+			}
+		}
+	}
+}
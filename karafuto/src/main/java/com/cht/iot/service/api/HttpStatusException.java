@@ -0,0 +1,41 @@
+package com.cht.iot.service.api;
+
+import java.io.IOException;
+
+/**
+ * The server replied with a status other than 200 OK.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	final int statusCode;
+
+	public HttpStatusException(int statusCode, String statusText) {
+		super(String.format("[%d] %s", statusCode, statusText));
+
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * 4xx means the request itself is wrong, to send it again is useless.
+	 *
+	 * @return
+	 */
+	public boolean isClientError() {
+		return (statusCode >= 400) && (statusCode < 500);
+	}
+
+	/**
+	 * The same request may be accepted later - 5xx, or 401 / 403 (the key is expired or being rotated),
+	 * 408 (request timeout) and 429 (too many requests). The other 4xx (e.g. 400, 404, 413, 422) are never accepted.
+	 *
+	 * @return
+	 */
+	public boolean isRetriable() {
+		return !isClientError() || (statusCode == 401) || (statusCode == 403) || (statusCode == 408) || (statusCode == 429);
+	}
+}
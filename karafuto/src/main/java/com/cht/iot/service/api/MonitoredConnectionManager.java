@@ -0,0 +1,148 @@
+package com.cht.iot.service.api;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+/**
+ * The connection pool of OpenRESTfulClient. It measures how long the requests wait for a connection,
+ * and closes the connection which has lived (since it's first leased, i.e. created) longer than the TTL when it is returned to the pool.
+ */
+public class MonitoredConnectionManager extends MultiThreadedHttpConnectionManager {
+	final long ttl;
+
+	final Map<HttpConnectionParams, Long> births = new WeakHashMap<HttpConnectionParams, Long>(); // by the params of the pooled connection
+
+	final AtomicInteger leased = new AtomicInteger();
+	final AtomicLong leases = new AtomicLong();
+	final AtomicLong timeouts = new AtomicLong();
+	final AtomicLong expired = new AtomicLong();
+	final AtomicLong waitTime = new AtomicLong();
+	volatile long maxWaitTime;
+
+	/**
+	 * @param ttl		max lifetime of a connection in millisecond, 0 is forever.
+	 */
+	public MonitoredConnectionManager(long ttl) {
+		this.ttl = ttl;
+	}
+
+	@Override
+	public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+		long ctm = System.nanoTime();
+		try {
+			HttpConnection conn = super.getConnectionWithTimeout(hostConfiguration, timeout);
+
+			leased.incrementAndGet();
+			leases.incrementAndGet();
+
+			if (ttl > 0L) {
+				// the adapter we return and the pooled connection we get back share the same params
+
+				HttpConnectionParams key = conn.getParams();
+				synchronized (births) {
+					if (!births.containsKey(key)) {
+						births.put(key, System.currentTimeMillis()); // a new connection
+					}
+				}
+			}
+
+			return conn;
+
+		} catch (ConnectionPoolTimeoutException e) {
+			timeouts.incrementAndGet();
+			throw e;
+
+		} finally {
+			long waited = (System.nanoTime() - ctm) / 1000000L;
+			waitTime.addAndGet(waited);
+			if (waited > maxWaitTime) {
+				maxWaitTime = waited;
+			}
+		}
+	}
+
+	@Override
+	public void releaseConnection(HttpConnection conn) {
+		if (ttl > 0L) {
+			long now = System.currentTimeMillis();
+			boolean expire = false;
+
+			synchronized (births) {
+				Long birth = births.get(conn.getParams());
+				if ((birth != null) && ((now - birth) > ttl)) {
+					births.remove(conn.getParams()); // it will be reopened as a new one
+					expire = true;
+				}
+			}
+
+			if (expire) {
+				expired.incrementAndGet();
+				conn.close();
+			}
+		}
+
+		leased.decrementAndGet(); // exact, a negative count means a connection is released twice
+
+		super.releaseConnection(conn);
+	}
+
+	// ======
+
+	/**
+	 * Number of connections which are leased by the requests. It doesn't go back to 0 if a response is never released (leak).
+	 *
+	 * @return
+	 */
+	public int getLeasedConnections() {
+		return leased.get();
+	}
+
+	/**
+	 * Number of requests which got the connection.
+	 *
+	 * @return
+	 */
+	public long getLeaseCount() {
+		return leases.get();
+	}
+
+	/**
+	 * Number of requests which could not get a connection in time.
+	 *
+	 * @return
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Number of connections closed by TTL.
+	 *
+	 * @return
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * Average time (in millisecond) a request waited for a connection.
+	 *
+	 * @return
+	 */
+	public double getAverageWaitTime() {
+		long n = leases.get() + timeouts.get();
+		return (n == 0L)? 0.0 : ((double) waitTime.get()) / n;
+	}
+
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+}
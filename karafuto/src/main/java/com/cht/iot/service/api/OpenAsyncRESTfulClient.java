@@ -0,0 +1,979 @@
+package com.cht.iot.service.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentOutputStream;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.util.SharedOutputBuffer;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cht.iot.persistence.entity.api.IDevice;
+import com.cht.iot.persistence.entity.api.IId;
+import com.cht.iot.persistence.entity.api.IProvision;
+import com.cht.iot.persistence.entity.api.ISensor;
+import com.cht.iot.persistence.entity.api.ISheet;
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.util.JsonUtils;
+
+/**
+ * The non-blocking version of OpenRESTfulClient. Every request is sent by the NIO reactor of HttpAsyncClient,
+ * so there is no thread waiting for the response.
+ *
+ * Each method returns a Future and notifies the optional callback when the response is arrived.
+ * The response is parsed and the callback is called by the executor, never by the I/O reactor thread,
+ * so a slow callback doesn't stall the other connections.
+ * The failure is an IOException, or HttpStatusException (the same as OpenRESTfulClient) if the server replies an error.
+ */
+public class OpenAsyncRESTfulClient implements Closeable {
+	static final Logger LOG = LoggerFactory.getLogger(OpenAsyncRESTfulClient.class);
+
+	static final ContentType JSON = ContentType.create("application/json", "UTF-8");
+
+	String protocol = "http";
+	final String host;
+	final int port;
+	final String apiKey;
+
+	final CloseableHttpAsyncClient client;
+
+	RequestConfig config = RequestConfig.DEFAULT;
+
+	Executor executor;
+	ExecutorService ownExecutor;	// created by us, shut down by close()
+
+	/**
+	 * Build a non-blocking RESTful client to access the IoT service.
+	 *
+	 * @param host			server host
+	 * @param port			default is 8080
+	 * @param apiKey
+	 */
+	public OpenAsyncRESTfulClient(String host, int port, String apiKey) {
+		this(host, port, apiKey, 200);
+	}
+
+	/**
+	 * Build a non-blocking RESTful client to access the IoT service.
+	 *
+	 * @param host			server host
+	 * @param port			default is 8080
+	 * @param apiKey
+	 * @param maxConnections	max requests in flight
+	 */
+	public OpenAsyncRESTfulClient(String host, int port, String apiKey, int maxConnections) {
+		this.host = host;
+		this.port = port;
+		this.apiKey = apiKey;
+
+		client = HttpAsyncClients.custom()
+					.setMaxConnTotal(maxConnections)
+					.setMaxConnPerRoute(maxConnections)
+					.build();
+		client.start();
+
+		ownExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OpenAsyncRESTfulClient-" + count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+		executor = ownExecutor;
+	}
+
+	/**
+	 * Parse the responses and call the callbacks by your executor instead of the default (cached daemon threads).
+	 * Your executor is not shut down by close().
+	 *
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void enableTls(boolean enable) {
+		protocol = (enable)? "https" : "http";
+	}
+
+	public void setTimeout(int timeout) {
+		config = RequestConfig.custom()
+					.setConnectTimeout(timeout)
+					.setConnectionRequestTimeout(timeout)
+					.setSocketTimeout(timeout)
+					.build();
+	}
+
+	/**
+	 * Close the I/O reactor. The requests in flight will be aborted.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			client.close();
+
+		} finally {
+			ownExecutor.shutdown();
+		}
+	}
+
+	// ======
+
+	protected <T> Future<T> http(HttpRequestBase request, final Reader<T> reader, FutureCallback<T> callback) {
+		request.setConfig(config);
+		request.addHeader("CK", apiKey);
+
+		final BasicFuture<T> future = new BasicFuture<T>(callback);
+
+		client.execute(request, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(final HttpResponse response) {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							int sc = response.getStatusLine().getStatusCode();
+							if (sc != HttpStatus.SC_OK) {
+								EntityUtils.consumeQuietly(response.getEntity());
+
+								future.failed(new HttpStatusException(sc, response.getStatusLine().getReasonPhrase()));
+
+							} else {
+								future.completed(reader.read(response.getEntity())); // the body is already buffered
+							}
+						} catch (Exception e) {
+							future.failed((e instanceof IOException)? e : new IOException(e.getMessage(), e));
+						}
+					}
+				});
+			}
+
+			@Override
+			public void failed(final Exception e) {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						future.failed((e instanceof IOException)? e : new IOException(e.getMessage(), e));
+					}
+				});
+			}
+
+			@Override
+			public void cancelled() {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						future.cancel();
+					}
+				});
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Leave the I/O reactor thread. The task is run in place if the executor is shut down, or the future never completes.
+	 */
+	protected void dispatch(Runnable task) {
+		try {
+			executor.execute(task);
+
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	protected <T> Future<T> post(HttpEntityEnclosingRequestBase request, String json, Reader<T> reader, FutureCallback<T> callback) {
+		if (json != null) {
+			request.setEntity(new NStringEntity(json, JSON));
+		}
+
+		return http(request, reader, callback);
+	}
+
+	protected String encode(String s) throws IOException {
+		return URLEncoder.encode(s, "UTF-8");
+	}
+
+	protected String query(String url, String start, String end, Integer interval) throws IOException {
+		if (start == null) {
+			throw new IOException("You must specify the start timestamp");
+		}
+
+		StringBuilder sb = new StringBuilder(url);
+		sb.append("?start=");
+		sb.append(encode(start));
+
+		if (end != null) {
+			sb.append("&end=");
+			sb.append(encode(end));
+		}
+
+		if (interval != null) {
+			sb.append("&interval=");
+			sb.append(interval);
+		}
+
+		return sb.toString();
+	}
+
+	protected <T> Future<T> failed(Exception e, FutureCallback<T> callback) {
+		BasicFuture<T> future = new BasicFuture<T>(callback);
+		future.failed(e);
+
+		return future;
+	}
+
+	protected static <T> Reader<T> json(final Class<T> clazz) {
+		return new Reader<T>() {
+			@Override
+			public T read(HttpEntity entity) throws IOException {
+				InputStream is = entity.getContent();
+				try {
+					return JsonUtils.fromJson(is, clazz);
+
+				} finally {
+					is.close();
+				}
+			}
+		};
+	}
+
+	protected static <T> Reader<T> constant(final T value) {
+		return new Reader<T>() {
+			@Override
+			public T read(HttpEntity entity) throws IOException {
+				EntityUtils.consume(entity);
+
+				return value;
+			}
+		};
+	}
+
+	protected static Reader<byte[]> bytes() {
+		return new Reader<byte[]>() {
+			@Override
+			public byte[] read(HttpEntity entity) throws IOException {
+				return EntityUtils.toByteArray(entity);
+			}
+		};
+	}
+
+	// ======
+
+	/**
+	 * Create a new device.
+	 *
+	 * @param dev		You can get the device ID by IDevice.getId() which is assigned by server.
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<IDevice> saveDevice(final IDevice dev, FutureCallback<IDevice> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device", host, port);
+
+		return post(new HttpPost(url), JsonUtils.toJson(dev), new Reader<IDevice>() {
+			@Override
+			public IDevice read(HttpEntity entity) throws IOException {
+				IId iid = json(IId.class).read(entity);
+				dev.setId(iid.getId());
+
+				return dev;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Modify the device.
+	 *
+	 * @param dev
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<IDevice> modifyDevice(IDevice dev, FutureCallback<IDevice> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s", host, port, dev.getId());
+
+		return post(new HttpPut(url), JsonUtils.toJson(dev), constant(dev), callback);
+	}
+
+	/**
+	 * Get the device by given ID.
+	 *
+	 * @param deviceId
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<IDevice> getDevice(String deviceId, FutureCallback<IDevice> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s", host, port, deviceId);
+
+		return http(new HttpGet(url), json(IDevice.class), callback);
+	}
+
+	/**
+	 * Get all the devices in your project. (Your API KEY will bind a project)
+	 *
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<IDevice[]> getDevices(FutureCallback<IDevice[]> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device", host, port);
+
+		return http(new HttpGet(url), json(IDevice[].class), callback);
+	}
+
+	/**
+	 * Delete the specified device.
+	 *
+	 * @param deviceId
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<Void> deleteDevice(String deviceId, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s", host, port, deviceId);
+
+		return http(new HttpDelete(url), constant((Void) null), callback);
+	}
+
+	// ======
+
+	/**
+	 * Create a new sensor. The sensor id is what you specified.
+	 *
+	 * @param deviceId
+	 * @param sensor
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<ISensor> saveSensor(String deviceId, ISensor sensor, FutureCallback<ISensor> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor", host, port, deviceId);
+
+		return post(new HttpPost(url), JsonUtils.toJson(sensor), constant(sensor), callback);
+	}
+
+	/**
+	 * Modify the sensor. The sensor ID is a key which you cannot change.
+	 *
+	 * @param deviceId
+	 * @param sensor
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<ISensor> modifySensor(String deviceId, ISensor sensor, FutureCallback<ISensor> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s", host, port, deviceId, sensor.getId());
+
+		return post(new HttpPut(url), JsonUtils.toJson(sensor), constant(sensor), callback);
+	}
+
+	/**
+	 * Get the sensor by given ID.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<ISensor> getSensor(String deviceId, String sensorId, FutureCallback<ISensor> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s", host, port, deviceId, sensorId);
+
+		return http(new HttpGet(url), json(ISensor.class), callback);
+	}
+
+	/**
+	 * Get all the sensors of the specified device.
+	 *
+	 * @param deviceId
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<ISensor[]> getSensors(String deviceId, FutureCallback<ISensor[]> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor", host, port, deviceId);
+
+		return http(new HttpGet(url), json(ISensor[].class), callback);
+	}
+
+	/**
+	 * Delete a sensor.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param callback	[optional]
+	 * @return
+	 */
+	public Future<Void> deleteSensor(String deviceId, String sensorId, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s", host, port, deviceId, sensorId);
+
+		return http(new HttpDelete(url), constant((Void) null), callback);
+	}
+
+	// ======
+
+	/**
+	 * Insert one rawdata into the data store.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> saveRawdata(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, FutureCallback<Void> callback) {
+		Rawdata rawdata = new Rawdata();
+		rawdata.setId(sensorId);
+		rawdata.setTime(time);
+		rawdata.setLat(lat);
+		rawdata.setLon(lon);
+		rawdata.setValue(value);
+
+		return saveRawdatas(deviceId, new Rawdata[] { rawdata }, callback);
+	}
+
+	/**
+	 * Insert many rawdata (of any sensors) of the device into the data store with one POST.
+	 *
+	 * @param deviceId
+	 * @param rawdatas		Rawdata.getId() is the sensor ID.
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> saveRawdatas(String deviceId, Rawdata[] rawdatas, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/rawdata", host, port, deviceId);
+
+		return post(new HttpPost(url), JsonUtils.toJson(rawdatas), constant((Void) null), callback);
+	}
+
+	/**
+	 * Get the latest rawdata of the sensor. This rawdata means the current value of the sensor.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Rawdata> getRawdata(String deviceId, String sensorId, FutureCallback<Rawdata> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/rawdata", host, port, deviceId, sensorId);
+
+		return http(new HttpGet(url), json(Rawdata.class), callback);
+	}
+
+	/**
+	 * Get the rawdata from the data store.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param interval		[optional] sampling interval in minute. Not yet supported.
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Rawdata[]> getRawdatas(String deviceId, String sensorId, String start, String end, Integer interval, FutureCallback<Rawdata[]> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/rawdata", host, port, deviceId, sensorId), start, end, interval);
+
+			return http(new HttpGet(url), json(Rawdata[].class), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	/**
+	 * Delete the rawdata.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> deleteRawdata(String deviceId, String sensorId, String start, String end, FutureCallback<Void> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/rawdata", host, port, deviceId, sensorId), start, end, null);
+
+			return http(new HttpDelete(url), constant((Void) null), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	// ======
+
+	/**
+	 * Insert a snapshot (image) into the data store.
+	 * The image is streamed (chunked) without buffering. It's read by the executor, not the I/O reactor thread,
+	 * so a slow stream (e.g. a socket) doesn't stall the other requests. The stream is closed when it's all sent.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value			[optional] you can give the empty string array.
+	 * @param imageName
+	 * @param imageType		e.g. 'image/png', 'image/jpeg', 'image/gif'
+	 * @param imageBody		image byte stream
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> saveSnapshot(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, String imageName, String imageType, InputStream imageBody, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/snapshot", host, port, deviceId);
+
+		Rawdata rawdata = new Rawdata();
+		rawdata.setId(sensorId);
+		rawdata.setTime(time);
+		rawdata.setLat(lat);
+		rawdata.setLon(lon);
+		rawdata.setValue(value);
+
+		String meta = JsonUtils.toJson(rawdata);
+
+		try {
+			ContentType type = ContentType.create(imageType, (Charset) null); // checked, unlike create(imageType)
+
+			// the multipart is written with an empty image, then the image stream is put between the head and the tail
+
+			String boundary = UUID.randomUUID().toString().replace("-", "");
+			HttpEntity multipart = MultipartEntityBuilder.create()
+									.setBoundary(boundary)
+									.addTextBody("meta", meta, JSON)
+									.addPart(imageName, new InputStreamBody(new ByteArrayInputStream(new byte[0]), type, imageName))
+									.build();
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			multipart.writeTo(baos);
+
+			byte[] frame = baos.toByteArray();
+			int tail = ("\r\n--" + boundary + "--\r\n").length();
+
+			InputStream body = new SequenceInputStream(
+									new SequenceInputStream(new ByteArrayInputStream(frame, 0, frame.length - tail), imageBody),
+									new ByteArrayInputStream(frame, frame.length - tail, tail));
+
+			HttpPost pm = new HttpPost(url);
+			pm.setEntity(new StreamEntity(body, multipart.getContentType().getValue())); // chunked
+
+			return http(pm, constant((Void) null), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+
+		} catch (IllegalArgumentException e) { // bad image type or name
+			return failed(new IOException(e.getMessage(), e), callback);
+		}
+	}
+
+	/**
+	 * The request body from a blocking stream. The stream is copied into a buffer by the executor,
+	 * the I/O reactor only takes what is in the buffer and it's woken up when there is more.
+	 */
+	protected class StreamEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+		final InputStream source;
+		final SharedOutputBuffer buffer = new SharedOutputBuffer(64 * 1024);
+		final AtomicBoolean started = new AtomicBoolean();
+
+		volatile IOControl ioctrl;
+		volatile IOException error; // of the source
+
+		public StreamEntity(InputStream source, String contentType) {
+			this.source = source;
+
+			setContentType(contentType);
+			setChunked(true);
+		}
+
+		@Override
+		public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+			this.ioctrl = ioctrl;
+
+			if (started.compareAndSet(false, true)) {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							copy();
+						}
+					});
+				} catch (RejectedExecutionException e) { // never on the I/O reactor thread
+					throw new IOException("The client is closed", e);
+				}
+			}
+
+			if (error != null) {
+				throw error; // the request fails
+			}
+
+			buffer.produceContent(encoder, ioctrl);
+		}
+
+		protected void copy() {
+			try {
+				try {
+					IOUtils.copyLarge(source, new ContentOutputStream(buffer), new byte[8 * 1024]); // waits if the buffer is full
+
+					buffer.writeCompleted();
+
+				} finally {
+					source.close();
+				}
+			} catch (IOException e) {
+				error = e;
+
+				IOControl ioc = ioctrl;
+				if (ioc != null) {
+					ioc.requestOutput(); // to throw it
+				}
+			}
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1L;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return source;
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException {
+			IOUtils.copyLarge(source, os, new byte[8 * 1024]);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			buffer.shutdown(); // the request is done or aborted, stop the copying
+		}
+	}
+
+	/**
+	 * Get the latest snapshot meta data of the sensor. You can get the snapshot UUID by Rawdata.getValues().
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Rawdata> getSnapshotMeta(String deviceId, String sensorId, FutureCallback<Rawdata> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot/meta", host, port, deviceId, sensorId);
+
+		return http(new HttpGet(url), json(Rawdata.class), callback);
+	}
+
+	/**
+	 * Get the snapshot meta data from data store.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp
+	 * @param end			[optional]
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Rawdata[]> getSnapshotMetas(String deviceId, String sensorId, String start, String end, FutureCallback<Rawdata[]> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot/meta", host, port, deviceId, sensorId), start, end, null);
+
+			return http(new HttpGet(url), json(Rawdata[].class), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	/**
+	 * Get the current snapshot body.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<byte[]> getSnapshotBody(String deviceId, String sensorId, FutureCallback<byte[]> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot", host, port, deviceId, sensorId);
+
+		return http(new HttpGet(url), bytes(), callback);
+	}
+
+	/**
+	 * Get the snapshot body by given snapshot ID which you can retrieve from meta data.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param imageId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<byte[]> getSnapshotBody(String deviceId, String sensorId, String imageId, FutureCallback<byte[]> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot/%s", host, port, deviceId, sensorId, imageId);
+
+		return http(new HttpGet(url), bytes(), callback);
+	}
+
+	/**
+	 * Delete the snapshot.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp
+	 * @param end			[optional]
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> deleteSnapshot(String deviceId, String sensorId, String start, String end, FutureCallback<Void> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot", host, port, deviceId, sensorId), start, end, null);
+
+			return http(new HttpDelete(url), constant((Void) null), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	// ======
+
+	/**
+	 * Declare a sheet with column definitions.
+	 *
+	 * @param deviceId
+	 * @param sheet
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<ISheet> declareSheet(String deviceId, ISheet sheet, FutureCallback<ISheet> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet", host, port, deviceId);
+
+		return post(new HttpPut(url), JsonUtils.toJson(sheet), constant(sheet), callback);
+	}
+
+	/**
+	 * Get the sheet definition.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<ISheet> getSheet(String deviceId, String sheetId, FutureCallback<ISheet> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet/%s", host, port, deviceId, sheetId);
+
+		return http(new HttpGet(url), json(ISheet.class), callback);
+	}
+
+	/**
+	 * Get all the sheet definitions from the specified device.
+	 *
+	 * @param deviceId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<ISheet[]> getSheets(String deviceId, FutureCallback<ISheet[]> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet", host, port, deviceId);
+
+		return http(new HttpGet(url), json(ISheet[].class), callback);
+	}
+
+	/**
+	 * Delete the specified sheet.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> deleteSheet(String deviceId, String sheetId, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet/%s", host, port, deviceId, sheetId);
+
+		return http(new HttpDelete(url), constant((Void) null), callback);
+	}
+
+	/**
+	 * Save a record into a sheet.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param time
+	 * @param value
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> saveRecord(String deviceId, String sheetId, String time, Map<String, String> value, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/record", host, port, deviceId);
+
+		Record record = new Record();
+		record.setId(sheetId);
+		record.setTime(time);
+		record.setValue(value);
+
+		return post(new HttpPost(url), JsonUtils.toJson(new Record[] { record }), constant((Void) null), callback);
+	}
+
+	/**
+	 * Get the latest record from the sheet.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Record> getRecord(String deviceId, String sheetId, FutureCallback<Record> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet/%s/record", host, port, deviceId, sheetId);
+
+		return http(new HttpGet(url), json(Record.class), callback);
+	}
+
+	/**
+	 * Get the records from the sheet with criteria.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param start
+	 * @param end
+	 * @param interval
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Record[]> getRecords(String deviceId, String sheetId, String start, String end, Integer interval, FutureCallback<Record[]> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet/%s/record", host, port, deviceId, sheetId), start, end, interval);
+
+			return http(new HttpGet(url), json(Record[].class), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	/**
+	 * Delete the records from the sheet with criteria.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param start
+	 * @param end
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> deleteRecords(String deviceId, String sheetId, String start, String end, FutureCallback<Void> callback) {
+		try {
+			String url = query(String.format(protocol + "://%s:%d/iot/v1/device/%s/sheet/%s/record", host, port, deviceId, sheetId), start, end, null);
+
+			return http(new HttpDelete(url), constant((Void) null), callback);
+
+		} catch (IOException e) {
+			return failed(e, callback);
+		}
+	}
+
+	// ======
+
+	/**
+	 * Ask IoT server to reconfigure the equipment with the serial number and digest.
+	 *
+	 * @param serialId
+	 * @param digest
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> reconfigure(String serialId, String digest, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/registry/%s", host, port, serialId);
+
+		IProvision provision = new IProvision();
+		provision.setOp(IProvision.Op.Reconfigure);
+		provision.setDigest(digest);
+
+		return post(new HttpPost(url), JsonUtils.toJson(provision), constant((Void) null), callback);
+	}
+
+	/**
+	 * Ask IoT server to re-assign the device ID.
+	 *
+	 * @param serialId
+	 * @param digest
+	 * @param deviceId
+	 * @param callback		[optional]
+	 * @return
+	 */
+	public Future<Void> setDeviceId(String serialId, String digest, String deviceId, FutureCallback<Void> callback) {
+		String url = String.format(protocol + "://%s:%d/iot/v1/registry/%s", host, port, serialId);
+
+		IProvision provision = new IProvision();
+		provision.setOp(IProvision.Op.SetDeviceId);
+		provision.setDigest(digest);
+		provision.setDeviceId(deviceId);
+
+		return post(new HttpPost(url), JsonUtils.toJson(provision), constant((Void) null), callback);
+	}
+
+	// ======
+
+	/**
+	 * Convert the response body into the result.
+	 */
+	protected static interface Reader<T> {
+		T read(HttpEntity entity) throws IOException;
+	}
+}
@@ -1,31 +1,44 @@
 package com.cht.iot.service.api;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLContext;
 
 import org.apache.commons.lang.RandomStringUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cht.iot.persistence.entity.data.Rawdata;
 import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.RawdataDecoder;
 
 public class OpenMqttClient {
 	static final Logger LOG = LoggerFactory.getLogger(OpenMqttClient.class);
@@ -33,23 +46,58 @@ public class OpenMqttClient {
 	public static final int DEFAULT_MQTT_PORT = 1883;
 	public static final int QOS_NO_CONFIRMATION = 0;
 	public static final int QOS_1 = 1;
+	public static final int QOS_2 = 2;
+	
+	static final int PAHO_MAX_INFLIGHT = 10; // hardcoded in Paho
 	
 	final String url;
 	final String apiKey;
 	
 	int connectionTimeout = 5;	// 5 seconds
 	int keepAliveInterval = 30;	// every 30 seconds
+	int maxBatchSize = 100;		// rawdata per PUBLISH
+	int subscribeBatchSize = 100;	// topics per SUBSCRIBE
+	int maxInflight = PAHO_MAX_INFLIGHT;	// PUBLISH waiting for the acknowledgement
+	
+	int qos = QOS_1;
+	final Map<String, Integer> qoses = new ConcurrentHashMap<String, Integer>(); // by device and sensor
+	int subscribeQos = QOS_NO_CONFIRMATION;
 	
 	Listener listener = new ListenerAdapter();
 
 	Set<String> topics = Collections.synchronizedSet(new HashSet<String>());
+	final Map<String, Handler> handlers = new ConcurrentHashMap<String, Handler>(); // by topic
+	
+	final RawdataDecoder decoder = new RawdataDecoder(); // only used by the MQTT callback thread
 	
 	
-	Thread thread;
+	volatile Thread thread; // null after stop()
 	
 	BlockingQueue<Action> actions = new LinkedBlockingQueue<OpenMqttClient.Action>();
 	
-	boolean connected = false;
+	Outbox outbox = new Outbox.InMemory(10000);
+	Outbox.Overflow overflow = Outbox.Overflow.DropNewest;
+	final Map<String, Outbox.Overflow> overflows = new ConcurrentHashMap<String, Outbox.Overflow>(); // by device and sensor
+	final AtomicBoolean flushing = new AtomicBoolean(); // a flush action is queued
+	
+	final AtomicLong enqueued = new AtomicLong();
+	final AtomicLong delivered = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong enqueueTime = new AtomicLong();
+	volatile long maxEnqueueTime;
+	
+	ReconnectPolicy reconnectPolicy;	// null is to wait for 'connectionTimeout'
+	String clientId;					// null is random
+	boolean cleanSession = true;
+	final Set<String> subscribed = Collections.synchronizedSet(new HashSet<String>()); // kept by the broker in our session
+	
+	volatile boolean connected = false;
+	
+	long connectTime;				// when the connection attempt started
+	int pendingSubscribes;			// topics to subscribe after connecting
+	volatile long timeToSubscribed = -1L;
 	
 	/**
 	 * Create a MQTT client. It will build the connection after you call OpenMqttClient.start();
@@ -76,6 +124,43 @@ public class OpenMqttClient {
 		this.connectionTimeout = connectionTimeout;
 	}
 	
+	/**
+	 * How long to wait before reconnecting. Default is to wait for the connection timeout.
+	 * 
+	 * @param reconnectPolicy
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+	
+	/**
+	 * Use the same client ID for every connection. Default is a new random one each time.
+	 * 
+	 * @param clientId		max 23 bytes
+	 */
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+	
+	/**
+	 * Ask the broker to keep our session (the subscriptions) after the connection is lost. It only works with a fixed client ID.
+	 * All the topics are still subscribed again after reconnecting (SUBSCRIBE is idempotent), we can't tell if the broker
+	 * has lost the session (e.g. restarted), but the topics unsubscribed during the disconnection are unsubscribed from the session.
+	 * 
+	 * @param cleanSession		default is true
+	 */
+	public void setCleanSession(boolean cleanSession) {
+		this.cleanSession = cleanSession;
+	}
+	
+	protected boolean isPersistentSession() {
+		return !cleanSession && (clientId != null);
+	}
+	
+	protected long getReconnectDelay(int attempt) {
+		return (reconnectPolicy != null)? reconnectPolicy.getDelay(attempt) : (connectionTimeout * 1000L);
+	}
+	
 	/**
 	 * Keep alive test in second.
 	 * 
@@ -85,6 +170,149 @@ public class OpenMqttClient {
 		this.keepAliveInterval = keepAliveInterval;
 	}
 	
+	/**
+	 * Max number of the rawdata taken from the outbox at a time. They are published as one MQTT message per device.
+	 * Set 1 to publish each rawdata alone.
+	 * 
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Max batch size must be positive");
+		}
+		
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	/**
+	 * Max number of the topics subscribed (or unsubscribed) by one MQTT SUBSCRIBE (or UNSUBSCRIBE).
+	 * 
+	 * @param subscribeBatchSize
+	 */
+	public void setSubscribeBatchSize(int subscribeBatchSize) {
+		if (subscribeBatchSize < 1) {
+			throw new IllegalArgumentException("Subscribe batch size must be positive");
+		}
+		
+		this.subscribeBatchSize = subscribeBatchSize;
+	}
+	
+	/**
+	 * Max number of the PUBLISH sent without waiting for the acknowledgement. Paho allows 10 at most.
+	 * Set 1 to publish one by one.
+	 * 
+	 * @param maxInflight
+	 */
+	public void setMaxInflight(int maxInflight) {
+		if ((maxInflight < 1) || (maxInflight > PAHO_MAX_INFLIGHT)) {
+			throw new IllegalArgumentException("Max in-flight must be between 1 and " + PAHO_MAX_INFLIGHT);
+		}
+		
+		this.maxInflight = maxInflight;
+	}
+	
+	/**
+	 * QoS of the rawdata to save. Default is QOS_1.
+	 * QOS_NO_CONFIRMATION is the fastest but the rawdata may be lost if the connection is broken.
+	 * 
+	 * @param qos
+	 */
+	public void setQos(int qos) {
+		this.qos = checkQos(qos);
+	}
+	
+	/**
+	 * QoS of the rawdata to save for the sensor, e.g. QOS_NO_CONFIRMATION for the frequent temperatures.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param qos			null to use the default one.
+	 */
+	public void setQos(String deviceId, String sensorId, Integer qos) {
+		String key = deviceId + '/' + sensorId;
+		if (qos != null) {
+			qoses.put(key, checkQos(qos));
+			
+		} else {
+			qoses.remove(key);
+		}
+	}
+	
+	protected int getQos(String deviceId, String sensorId) {
+		if (!qoses.isEmpty()) {
+			Integer q = qoses.get(deviceId + '/' + sensorId);
+			if (q != null) {
+				return q;
+			}
+		}
+		
+		return qos;
+	}
+	
+	/**
+	 * QoS of the subscriptions. Default is QOS_NO_CONFIRMATION.
+	 * 
+	 * @param subscribeQos
+	 */
+	public void setSubscribeQos(int subscribeQos) {
+		this.subscribeQos = checkQos(subscribeQos);
+	}
+	
+	protected static int checkQos(int qos) {
+		if ((qos < QOS_NO_CONFIRMATION) || (qos > QOS_2)) {
+			throw new IllegalArgumentException("QoS must be 0, 1 or 2");
+		}
+		
+		return qos;
+	}
+	
+	/**
+	 * Set the queue of the rawdata to save. Default is Outbox.InMemory(10000).
+	 * Use Outbox.OnDisk to keep the rawdata after the process is restarted.
+	 * 
+	 * @param outbox
+	 */
+	public void setOutbox(Outbox outbox) {
+		this.outbox = outbox;
+	}
+	
+	/**
+	 * What save() does when the outbox is full. Default is Overflow.DropNewest.
+	 * 
+	 * @param overflow
+	 */
+	public void setOverflow(Outbox.Overflow overflow) {
+		this.overflow = overflow;
+	}
+	
+	/**
+	 * What save() does for the sensor when the outbox is full, e.g. drop the old temperatures but block the alarms.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param overflow		null to use the default one.
+	 */
+	public void setOverflow(String deviceId, String sensorId, Outbox.Overflow overflow) {
+		String key = deviceId + '/' + sensorId;
+		if (overflow != null) {
+			overflows.put(key, overflow);
+			
+		} else {
+			overflows.remove(key);
+		}
+	}
+	
+	protected Outbox.Overflow getOverflow(String deviceId, String sensorId) {
+		if (!overflows.isEmpty()) {
+			Outbox.Overflow o = overflows.get(deviceId + '/' + sensorId);
+			if (o != null) {
+				return o;
+			}
+		}
+		
+		return overflow;
+	}
+	
 	/**
 	 * Set the listener to read the incoming events.
 	 * 
@@ -143,6 +371,10 @@ public class OpenMqttClient {
 		return JsonUtils.fromJson(json, Rawdata.class);
 	}
 	
+	protected Rawdata toRawdata(byte[] payload) {
+		return decoder.decode(payload);
+	}
+	
 	protected Provision toProvision(String json) {
 		return JsonUtils.fromJson(json, Provision.class);
 	}
@@ -177,6 +409,19 @@ public class OpenMqttClient {
 		}
 	}
 	
+	/**
+	 * Listen to the rawdata changed from the specified sensor. The rawdata are given to the handler instead of the listener.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param handler
+	 */
+	public void subscribe(String deviceId, String sensorId, Handler handler) {
+		handlers.put(getRawdataTopic(deviceId, sensorId), handler);
+		
+		subscribe(deviceId, sensorId);
+	}
+	
 	/**
 	 * Stop to listen to the rawdata changed from the specified sensor.
 	 * 
@@ -186,6 +431,8 @@ public class OpenMqttClient {
 	public void unsubscribe(String deviceId, String sensorId) {
 		String topic = getRawdataTopic(deviceId, sensorId);
 		
+		handlers.remove(topic);
+		
 		if (topics.remove(topic)) { // existed ?
 			Action a = new Action(Action.Method.unsubscribe, topic);
 			put(a);
@@ -221,21 +468,170 @@ public class OpenMqttClient {
 	}
 	
 	/**
-	 * Save the rawdata into IoT platform.
+	 * Save the rawdata into IoT platform. The rawdata is kept in the outbox until the broker has got it.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param value
+	 * @return			false if the rawdata is dropped.
+	 * @throws IllegalStateException	the outbox is full and the overflow of the sensor is Overflow.FailFast.
+	 */
+	public boolean save(String deviceId, String sensorId, String[] value) {
+		return save(deviceId, sensorId, value, getQos(deviceId, sensorId), null);
+	}
+	
+	/**
+	 * Save the rawdata into IoT platform with the given QoS. The callback is called by the MQTT thread
+	 * after the broker has got the rawdata (or it's sent if QoS is 0), or if it is dropped from the outbox.
 	 * 
 	 * @param deviceId
 	 * @param sensorId
 	 * @param value
+	 * @param qos
+	 * @param callback		[optional]
+	 * @return			false if the rawdata is dropped.
+	 * @throws IllegalStateException	the outbox is full and the overflow of the sensor is Overflow.FailFast.
 	 */
-	public void save(String deviceId, String sensorId, String[] value) {
+	public boolean save(String deviceId, String sensorId, String[] value, int qos, DeliveryCallback callback) {
 		String topic = getSavingRawdataTopic(deviceId);
 		
 		Rawdata rawdata = new Rawdata();
 		rawdata.setId(sensorId);
 		rawdata.setValue(value);
 		
-		Action a = new Action(Action.Method.save, topic, rawdata);
-		put(a);
+		boolean accepted = false;
+		boolean failure = false; // not because the outbox is full
+		long ctm = System.nanoTime();
+		try {
+			accepted = outbox.offer(new Outbox.Message(topic, rawdata, checkQos(qos), callback), getOverflow(deviceId, sensorId));
+			
+		} catch (IllegalStateException e) {
+			rejected.incrementAndGet();
+			throw e;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			
+			failure = true;
+			LOG.warn("Interrupted while waiting for the outbox, the rawdata is dropped - {}", topic);
+			
+		} catch (IOException e) {
+			failure = true;
+			LOG.error("Failed to put the rawdata into the outbox, it is dropped - " + topic, e);
+			
+		} finally {
+			long elapsed = System.nanoTime() - ctm;
+			enqueueTime.addAndGet(elapsed);
+			if (elapsed > maxEnqueueTime) {
+				maxEnqueueTime = elapsed;
+			}
+		}
+		
+		if (!accepted) {
+			if (failure) {
+				failed.incrementAndGet();
+				
+			} else {
+				dropped.incrementAndGet();
+				
+				LOG.warn("Outbox is full, the rawdata is dropped - {}", topic);
+			}
+			
+			if (callback != null) {
+				callback.onDropped(topic, rawdata);
+			}
+			
+			return false;
+		}
+		
+		enqueued.incrementAndGet();
+		
+		signal();
+		
+		return true;
+	}
+	
+	/**
+	 * Ask the MQTT thread to publish the outbox.
+	 */
+	protected void signal() {
+		if (flushing.compareAndSet(false, true)) {
+			put(new Action(Action.Method.flush, null));
+		}
+	}
+	
+	/**
+	 * Number of the rawdata waiting in the outbox.
+	 * 
+	 * @return
+	 */
+	public long getOutboxSize() {
+		return outbox.size();
+	}
+	
+	/**
+	 * Number of the rawdata put into the outbox.
+	 * 
+	 * @return
+	 */
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+	
+	/**
+	 * Number of the rawdata the broker has got (or sent with QoS 0).
+	 * 
+	 * @return
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+	
+	/**
+	 * Number of the rawdata dropped because the outbox is full, both the new ones (Overflow.DropNewest)
+	 * and the old ones (Overflow.DropOldest).
+	 * 
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get() + outbox.getEvictedCount();
+	}
+	
+	/**
+	 * Number of save() which throws IllegalStateException (Overflow.FailFast).
+	 * 
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Number of save() which is interrupted while waiting for the outbox (Overflow.Block) or fails to write the outbox (Outbox.OnDisk).
+	 * 
+	 * @return
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+	
+	/**
+	 * Average time (in microsecond) save() takes to put the rawdata into the outbox, including the blocking time.
+	 * 
+	 * @return
+	 */
+	public double getAverageEnqueueTime() {
+		long n = enqueued.get() + dropped.get() + rejected.get() + failed.get();
+		return (n == 0L)? 0.0 : (enqueueTime.get() / 1000.0) / n;
+	}
+	
+	/**
+	 * Max time (in microsecond) save() takes to put the rawdata into the outbox.
+	 * 
+	 * @return
+	 */
+	public long getMaxEnqueueTime() {
+		return maxEnqueueTime / 1000L;
 	}
 	
 	// ======
@@ -282,6 +678,15 @@ public class OpenMqttClient {
 		return connected;
 	}
 	
+	/**
+	 * How long (in millisecond) it took from the last connection attempt to all the topics are subscribed.
+	 * 
+	 * @return		-1 if it's not yet done.
+	 */
+	public long getTimeToSubscribed() {
+		return timeToSubscribed;
+	}
+	
 	// ======
 	
 	protected void doConnect(MqttClient client) throws MqttException, GeneralSecurityException {
@@ -289,21 +694,7 @@ public class OpenMqttClient {
 			
 			@Override
 			public void messageArrived(String topic, MqttMessage message) throws Exception {
-				String json = new String(message.getPayload(), "UTF-8");
-				if (topic.startsWith("/v1/device/")) {
-					Rawdata rawdata = toRawdata(json);
-					listener.onRawdata(topic, rawdata);
-					
-				} else if (topic.startsWith("/v1/registry/")) {
-					Provision provision = toProvision(json);
-					Provision.Op op = provision.getOp();
-					if (op == Provision.Op.Reconfigure) {
-						listener.onReconfigure(topic, provision.getCk());
-						
-					} else if (op == Provision.Op.SetDeviceId) {
-						listener.onSetDeviceId(topic, provision.getCk(), provision.getDeviceId());
-					}
-				}				
+				onMessage(topic, message.getPayload());
 			}
 			
 			@Override
@@ -323,7 +714,7 @@ public class OpenMqttClient {
 		opts.setPassword(apiKey.toCharArray());
 		opts.setConnectionTimeout(connectionTimeout);
 		opts.setKeepAliveInterval(keepAliveInterval);		
-		opts.setCleanSession(true);		
+		opts.setCleanSession(!isPersistentSession());
 		if (url.startsWith("ssl")) {
 			opts.setSocketFactory(SSLContext.getDefault().getSocketFactory());
 		}
@@ -333,50 +724,302 @@ public class OpenMqttClient {
 		LOG.info("MQTT is connected.");
 	}
 	
+	/**
+	 * Route the incoming message. The subscribed sensor with a handler is found by one hash lookup of the topic,
+	 * the others go to the listener.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @throws UnsupportedEncodingException
+	 */
+	protected void onMessage(String topic, byte[] payload) throws UnsupportedEncodingException {
+		Handler handler = handlers.get(topic);
+		if (handler != null) {
+			handler.onRawdata(topic, toRawdata(payload));
+			
+		} else if (topic.startsWith("/v1/device/")) {
+			Rawdata rawdata = toRawdata(payload);
+			listener.onRawdata(topic, rawdata);
+			
+		} else if (topic.startsWith("/v1/registry/")) {
+			String json = new String(payload, "UTF-8");
+			Provision provision = toProvision(json);
+			Provision.Op op = provision.getOp();
+			if (op == Provision.Op.Reconfigure) {
+				listener.onReconfigure(topic, provision.getCk());
+				
+			} else if (op == Provision.Op.SetDeviceId) {
+				listener.onSetDeviceId(topic, provision.getCk(), provision.getDeviceId());
+			}
+		}
+	}
+	
 	protected void doSubscribe(MqttClient client) throws MqttException {		
 		synchronized (topics) {
-			actions.clear(); // HINT - don't worry, it will not be deadlock
+			actions.clear(); // HINT - don't worry, it will not be deadlock. The rawdata to save are in the outbox, not here.
+			flushing.set(false);
+			
+			if (!isPersistentSession()) {
+				subscribed.clear(); // the broker forgets them
+			}
 			
-			for (String topic : topics) {
+			pendingSubscribes = 0;
+			for (String topic : topics) { // even in a persistent session, the broker may have lost it
 				Action a = new Action(Action.Method.subscribe, topic);
-				put(a);				
+				put(a);
+				
+				pendingSubscribes += 1;
 			}
-		}		
+			
+			synchronized (subscribed) {
+				for (String topic : subscribed) {
+					if (!topics.contains(topic)) { // unsubscribed during the disconnection
+						Action a = new Action(Action.Method.unsubscribe, topic);
+						put(a);
+					}
+				}
+			}
+		}
+		
+		timeToSubscribed = -1L;
+		if (pendingSubscribes == 0) {
+			subscribed();
+		}
+		
+		if (outbox.size() > 0L) {
+			signal(); // publish what we have got during the disconnection
+		}
+	}
+	
+	protected void subscribed() {
+		timeToSubscribed = System.currentTimeMillis() - connectTime;
+		
+		LOG.info("All the topics are subscribed in {} ms", timeToSubscribed);
+	}
+	
+	/**
+	 * Execute the actions.
+	 * 
+	 * @param client
+	 * @param batch
+	 * @throws MqttException
+	 * @throws IOException
+	 */
+	protected void doActions(MqttClient client, List<Action> batch) throws MqttException, IOException, InterruptedException {
+		boolean flush = false;
+		
+		// the consecutive (un)subscriptions are grouped, the order is kept
+		Action.Method method = null;
+		List<String> group = new ArrayList<String>();
+		
+		for (Action a : batch) {
+			if ((a.method == Action.Method.subscribe) || (a.method == Action.Method.unsubscribe)) {
+				if ((a.method != method) || (group.size() >= subscribeBatchSize)) {
+					doSubscriptions(client, method, group);
+					group.clear();
+				}
+				
+				method = a.method;
+				group.add(a.topic);
+				
+			} else if (a.method == Action.Method.flush) {
+				flush = true;
+			}
+		}
+		
+		doSubscriptions(client, method, group);
+		
+		if (flush) {
+			doFlush(client);
+		}
+	}
+	
+	protected void doSubscriptions(MqttClient client, Action.Method method, List<String> group) throws MqttException {
+		if (group.isEmpty()) {
+			return;
+		}
+		
+		String[] topicFilters = group.toArray(new String[group.size()]);
+		
+		if (method == Action.Method.subscribe) {
+			LOG.info("Subscribe - {}", group);
+			doSubscribe(client, topicFilters);
+			subscribed.addAll(group);
+			
+			if (pendingSubscribes > 0) {
+				pendingSubscribes -= topicFilters.length;
+				if (pendingSubscribes <= 0) {
+					subscribed();
+				}
+			}
+		} else {
+			LOG.info("Un-Subscribe - {}", group);
+			doUnsubscribe(client, topicFilters);
+			subscribed.removeAll(group);
+		}
+	}
+	
+	/**
+	 * Subscribe the topics by one MQTT SUBSCRIBE and wait for the acknowledgement.
+	 * 
+	 * @param client
+	 * @param topicFilters
+	 * @throws MqttException
+	 */
+	protected void doSubscribe(MqttClient client, String[] topicFilters) throws MqttException {
+		int[] qos = new int[topicFilters.length];
+		Arrays.fill(qos, subscribeQos);
+		
+		client.subscribe(topicFilters, qos);
+	}
+	
+	protected void doUnsubscribe(MqttClient client, String[] topicFilters) throws MqttException {
+		client.unsubscribe(topicFilters);
+	}
+	
+	/**
+	 * Publish the outbox. The consecutive rawdata of the same topic (device) and QoS are published as one Rawdata[] message,
+	 * up to 'maxBatchSize' rawdata. The messages are published in the order the rawdata are saved.
+	 * Up to 'maxInflight' messages are sent without waiting for the acknowledgement.
+	 * The rawdata are removed from the outbox after all of them are acknowledged, or they will be published again after reconnecting.
+	 * 
+	 * @param client
+	 * @throws MqttException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected void doFlush(MqttClient client) throws MqttException, IOException, InterruptedException {
+		flushing.set(false); // the new rawdata will ask for another flush
+		
+		for (;;) {
+			List<Outbox.Message> messages = outbox.peek(maxBatchSize * maxInflight);
+			if (messages.isEmpty()) {
+				break;
+			}
+			
+			List<Save> saves = new ArrayList<Save>();
+			Save save = null; // the run being coalesced
+			for (Outbox.Message m : messages) {
+				if ((save == null) || (save.qos != m.getQos()) || !save.topic.equals(m.getTopic()) || (save.rawdatas.size() >= maxBatchSize)) {
+					save = new Save(m.getTopic(), m.getQos());
+					saves.add(save);
+				}
+				save.rawdatas.add(m.getRawdata());
+			}
+			
+			final Semaphore window = new Semaphore(maxInflight);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			
+			IMqttActionListener listener = new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken token) {
+					window.release();
+				}
+				
+				@Override
+				public void onFailure(IMqttToken token, Throwable e) {
+					failure.compareAndSet(null, (e != null)? e : new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION));
+					window.release();
+				}
+			};
+			
+			try {
+				for (Save s : saves) {
+					window.acquire();
+					if (failure.get() != null) {
+						window.release();
+						break;
+					}
+					
+					String json = toJson(s.rawdatas.toArray(new Rawdata[s.rawdatas.size()]));
+					try {
+						publish(client, s.topic, json.getBytes("UTF-8"), s.qos, listener);
+						
+					} catch (MqttException ex) {
+						window.release();
+						throw ex;
+					}
+				}
+			} finally {
+				window.acquire(maxInflight); // wait for the acknowledgements
+				window.release(maxInflight);
+			}
+			
+			Throwable e = failure.get();
+			if (e != null) {
+				throw (e instanceof MqttException)? (MqttException) e : new MqttException(e);
+			}
+			
+			outbox.remove(messages.size());
+			delivered.addAndGet(messages.size());
+			
+			for (Outbox.Message m : messages) {
+				DeliveryCallback callback = m.getCallback();
+				if (callback != null) {
+					try {
+						callback.onDelivered(m.getTopic(), m.getRawdata());
+						
+					} catch (Exception ex) {
+						LOG.error("Failed to call the delivery callback", ex);
+					}
+				}
+			}
+			
+			if (!actions.isEmpty()) { // let the (un)subscriptions go first
+				signal();
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Publish the message without waiting. The listener is notified when the broker has got it (or it's sent if QoS is 0).
+	 * 
+	 * @param client
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @param listener
+	 * @throws MqttException
+	 */
+	protected void publish(MqttClient client, String topic, byte[] payload, int qos, IMqttActionListener listener) throws MqttException {
+		if (client instanceof Client) {
+			((Client) client).getAsyncClient().publish(topic, payload, qos, false, null, listener);
+			
+		} else {
+			client.publish(topic, payload, qos, false);
+			listener.onSuccess(null);
+		}
 	}
 	
 	protected void process() {
 		try {
-			MqttClientPersistence mcp = new MqttDefaultFilePersistence(System.getProperty("java.io.tmpdir")); // should not be null
+			MqttClientPersistence mcp = new MemoryPersistence(); // the outbox keeps the rawdata until they are acknowledged
 		
+			int attempt = 0; // failed attempts in a row
+			
 			while (thread != null) {
 				LOG.info("Connect to MQTT broker - " + url);
 
+				connectTime = System.currentTimeMillis();
+				
 				try {
-					String clientId = RandomStringUtils.randomAlphanumeric(23); // max bytes of client id is 23
-					MqttClient client = new MqttClient(url, clientId, mcp);
+					String id = (clientId != null)? clientId : RandomStringUtils.randomAlphanumeric(23); // max bytes of client id is 23
+					MqttClient client = new Client(url, id, mcp);
 					try {
 						doConnect(client);
 						doSubscribe(client);
 						
 						connected = true;
+						attempt = 0;
 
+						List<Action> batch = new ArrayList<Action>();
 						while (thread != null) {
-							Action a = actions.take();													
+							batch.add(actions.take());
+							actions.drainTo(batch); // and the others already queued, only (un)subscriptions and flushes
 							
-							if (a.method == Action.Method.subscribe) {
-								LOG.info("Subscribe - {}", a.topic);
-								client.subscribe(a.topic, QOS_NO_CONFIRMATION);
-								
-							} else if (a.method == Action.Method.unsubscribe) {
-								LOG.info("Un-Subscribe - {}", a.topic);
-								client.unsubscribe(a.topic);
-								
-							} else if (a.method == Action.Method.save) {
-								MqttTopic mt = client.getTopic(a.topic);
-								
-								String json = toJson(new Rawdata[] { a.rawdata });
-								mt.publish(json.getBytes("UTF-8"), QOS_1, false);
-							}
+							doActions(client, batch);
+							batch.clear();
 						}
 					} finally {
 						try {
@@ -393,7 +1036,20 @@ public class OpenMqttClient {
 				
 				connected = false;
 
-				try { Thread.sleep(connectionTimeout * 1000L); } catch (InterruptedException ie) {} // sleep then retry
+				attempt += 1;
+				
+				long delay = getReconnectDelay(attempt);
+				if ((delay > 0L) && (thread != null)) { // stop() may have been called, its interrupt could be eaten by the connection
+					try {
+						Thread.sleep(delay); // then retry
+						
+					} catch (InterruptedException ie) {
+						if (thread == null) {
+							break; // stop()
+						}
+						// reconnect(), retry now
+					}
+				}
 			}
 		} catch (Exception ex) {
 			LOG.error("Unknown exception", ex);
@@ -402,24 +1058,42 @@ public class OpenMqttClient {
 	
 	// ======
 	
+	/**
+	 * Expose the asynchronous client for publishing without waiting.
+	 */
+	static class Client extends MqttClient {
+		
+		public Client(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
+			super(serverURI, clientId, persistence);
+		}
+		
+		MqttAsyncClient getAsyncClient() {
+			return aClient;
+		}
+	}
+	
+	static final class Save {
+		final String topic;
+		final int qos;
+		final List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+		
+		Save(String topic, int qos) {
+			this.topic = topic;
+			this.qos = qos;
+		}
+	}
+	
 	static final class Action {
 		Method method;
 		String topic;
-		Rawdata rawdata;
 		
 		public Action(Method method, String topic) {
 			this.method = method;
 			this.topic = topic;			
 		}
 		
-		public Action(Method method, String topic, Rawdata rawdata) {
-			this.method = method;
-			this.topic = topic;			
-			this.rawdata = rawdata;
-		}
-		
 		enum Method {
-			subscribe, unsubscribe, save
+			subscribe, unsubscribe, flush
 		}
 	}
 	
@@ -488,6 +1162,46 @@ public class OpenMqttClient {
 		public void onSetDeviceId(String topic, String apiKey, String deviceId);
 	}
 	
+	public static interface Handler {
+		
+		/**
+		 * The value changed of the subscribed sensor.
+		 * 
+		 * @param topic
+		 * @param rawdata
+		 */
+		public void onRawdata(String topic, Rawdata rawdata);
+	}
+	
+	public static interface DeliveryCallback {
+		
+		/**
+		 * The broker has got the rawdata (or it's sent if QoS is 0).
+		 * 
+		 * @param topic
+		 * @param rawdata
+		 */
+		public void onDelivered(String topic, Rawdata rawdata);
+		
+		/**
+		 * The rawdata is dropped because the outbox is full.
+		 * 
+		 * @param topic
+		 * @param rawdata
+		 */
+		public void onDropped(String topic, Rawdata rawdata);
+	}
+	
+	public static class DeliveryCallbackAdapter implements DeliveryCallback {
+		@Override
+		public void onDelivered(String topic, Rawdata rawdata) {
+		}
+		
+		@Override
+		public void onDropped(String topic, Rawdata rawdata) {
+		}
+	}
+	
 	public static class ListenerAdapter implements Listener {
 		@Override
 		public void onRawdata(String topic, Rawdata rawdata) {
@@ -0,0 +1,272 @@
+package com.cht.iot.service.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cht.iot.service.api.OpenMqttClient.Listener;
+
+/**
+ * Many OpenMqttClient (MQTT connections) work together to publish and subscribe a large number of devices.
+ *
+ * Each device is always handled by the same connection (hash of the device ID), so the rawdata of a device are
+ * published in order. All the connections share one listener, it may be called by many threads at the same time.
+ */
+public class OpenMqttClientPool {
+	final List<OpenMqttClient> shards;
+
+	/**
+	 * Create the MQTT connections. They will be connected after you call OpenMqttClientPool.start();
+	 *
+	 * @param host		server host
+	 * @param port		default must be 1883
+	 * @param apiKey
+	 * @param tls
+	 * @param size		number of the MQTT connections
+	 */
+	public OpenMqttClientPool(String host, int port, String apiKey, boolean tls, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Size must be positive");
+		}
+
+		List<OpenMqttClient> clients = new ArrayList<OpenMqttClient>(size);
+		for (int i = 0; i < size; i++) {
+			clients.add(newClient(host, port, apiKey, tls));
+		}
+
+		shards = Collections.unmodifiableList(clients);
+	}
+
+	public OpenMqttClientPool(String host, int port, String apiKey, int size) {
+		this(host, port, apiKey, false, size);
+	}
+
+	protected OpenMqttClient newClient(String host, int port, String apiKey, boolean tls) {
+		return new OpenMqttClient(host, port, apiKey, tls);
+	}
+
+	/**
+	 * The MQTT connections. You can configure each of them, e.g. OpenMqttClient.setOutbox().
+	 *
+	 * @return
+	 */
+	public List<OpenMqttClient> getClients() {
+		return shards;
+	}
+
+	/**
+	 * The MQTT connection which handles the device (or the product serial number).
+	 *
+	 * @param id
+	 * @return
+	 */
+	public OpenMqttClient getClient(String id) {
+		return shards.get((id.hashCode() & 0x7fffffff) % shards.size());
+	}
+
+	// ======
+
+	public void setConnectionTimeout(int connectionTimeout) {
+		for (OpenMqttClient client : shards) {
+			client.setConnectionTimeout(connectionTimeout);
+		}
+	}
+
+	public void setKeepAliveInterval(int keepAliveInterval) {
+		for (OpenMqttClient client : shards) {
+			client.setKeepAliveInterval(keepAliveInterval);
+		}
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		for (OpenMqttClient client : shards) {
+			client.setMaxBatchSize(maxBatchSize);
+		}
+	}
+
+	public void setMaxInflight(int maxInflight) {
+		for (OpenMqttClient client : shards) {
+			client.setMaxInflight(maxInflight);
+		}
+	}
+
+	public void setQos(int qos) {
+		for (OpenMqttClient client : shards) {
+			client.setQos(qos);
+		}
+	}
+
+	public void setQos(String deviceId, String sensorId, Integer qos) {
+		getClient(deviceId).setQos(deviceId, sensorId, qos);
+	}
+
+	public void setSubscribeQos(int subscribeQos) {
+		for (OpenMqttClient client : shards) {
+			client.setSubscribeQos(subscribeQos);
+		}
+	}
+
+	public void setOverflow(Outbox.Overflow overflow) {
+		for (OpenMqttClient client : shards) {
+			client.setOverflow(overflow);
+		}
+	}
+
+	public void setOverflow(String deviceId, String sensorId, Outbox.Overflow overflow) {
+		getClient(deviceId).setOverflow(deviceId, sensorId, overflow);
+	}
+
+	/**
+	 * Set the listener of all the MQTT connections. It must be thread-safe.
+	 *
+	 * @param listener
+	 */
+	public void setListener(Listener listener) {
+		for (OpenMqttClient client : shards) {
+			client.setListener(listener);
+		}
+	}
+
+	// ======
+
+	public void subscribe(String deviceId, String sensorId) {
+		getClient(deviceId).subscribe(deviceId, sensorId);
+	}
+
+	public void subscribe(String deviceId, String sensorId, OpenMqttClient.Handler handler) {
+		getClient(deviceId).subscribe(deviceId, sensorId, handler);
+	}
+
+	public void unsubscribe(String deviceId, String sensorId) {
+		getClient(deviceId).unsubscribe(deviceId, sensorId);
+	}
+
+	public void register(String serialId) {
+		getClient(serialId).register(serialId);
+	}
+
+	public void unregister(String serialId) {
+		getClient(serialId).unregister(serialId);
+	}
+
+	/**
+	 * Save the rawdata into IoT platform by the MQTT connection of the device.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param value
+	 * @return			false if the rawdata is dropped.
+	 */
+	public boolean save(String deviceId, String sensorId, String[] value) {
+		return getClient(deviceId).save(deviceId, sensorId, value);
+	}
+
+	public boolean save(String deviceId, String sensorId, String[] value, int qos, OpenMqttClient.DeliveryCallback callback) {
+		return getClient(deviceId).save(deviceId, sensorId, value, qos, callback);
+	}
+
+	// ======
+
+	public void start() {
+		for (OpenMqttClient client : shards) {
+			client.start();
+		}
+	}
+
+	public void stop() {
+		for (OpenMqttClient client : shards) {
+			client.stop();
+		}
+	}
+
+	public void reconnect() {
+		for (OpenMqttClient client : shards) {
+			client.reconnect();
+		}
+	}
+
+	/**
+	 * Are all the MQTT connections built ?
+	 *
+	 * @return
+	 */
+	public boolean isConnected() {
+		return getConnectedCount() == shards.size();
+	}
+
+	/**
+	 * Number of the MQTT connections which are built.
+	 *
+	 * @return
+	 */
+	public int getConnectedCount() {
+		int connected = 0;
+		for (OpenMqttClient client : shards) {
+			if (client.isConnected()) {
+				connected += 1;
+			}
+		}
+
+		return connected;
+	}
+
+	public int getSize() {
+		return shards.size();
+	}
+
+	// ======
+
+	public long getOutboxSize() {
+		long size = 0L;
+		for (OpenMqttClient client : shards) {
+			size += client.getOutboxSize();
+		}
+
+		return size;
+	}
+
+	public long getEnqueuedCount() {
+		long count = 0L;
+		for (OpenMqttClient client : shards) {
+			count += client.getEnqueuedCount();
+		}
+
+		return count;
+	}
+
+	public long getDeliveredCount() {
+		long count = 0L;
+		for (OpenMqttClient client : shards) {
+			count += client.getDeliveredCount();
+		}
+
+		return count;
+	}
+
+	public long getDroppedCount() {
+		long count = 0L;
+		for (OpenMqttClient client : shards) {
+			count += client.getDroppedCount();
+		}
+
+		return count;
+	}
+
+	public long getRejectedCount() {
+		long count = 0L;
+		for (OpenMqttClient client : shards) {
+			count += client.getRejectedCount();
+		}
+
+		return count;
+	}
+
+	public long getFailedCount() {
+		long count = 0L;
+		for (OpenMqttClient client : shards) {
+			count += client.getFailedCount();
+		}
+
+		return count;
+	}
+}
@@ -1,19 +1,39 @@
 package com.cht.iot.service.api;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StringWriter;
 import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -25,7 +45,10 @@ import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.commons.httpclient.methods.multipart.PartBase;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,25 +57,35 @@ import com.cht.iot.persistence.entity.api.IId;
 import com.cht.iot.persistence.entity.api.IProvision;
 import com.cht.iot.persistence.entity.api.ISensor;
 import com.cht.iot.persistence.entity.api.ISheet;
+import com.cht.iot.persistence.entity.data.Material;
 import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.RawdataSeries;
 import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.persistence.entity.data.RecordBatch;
+import com.cht.iot.util.IsoTime;
+import com.cht.iot.util.JsonArrayIterator;
 import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.RawdataDecoder;
+import com.cht.iot.util.RecordDecoder;
 
 public class OpenRESTfulClient {
 	static final Logger LOG = LoggerFactory.getLogger(OpenRESTfulClient.class);
 	
-	static final DateFormat DF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-	static {
-		DF.setTimeZone(TimeZone.getTimeZone("UTC"));
-	}
-	
 	String protocol = "http";
 	final String host;
 	final int port;
 	final String apiKey;
 	
 	final HttpClient client;
+	final MonitoredConnectionManager manager;
+	final IdleConnectionTimeoutThread evictor;
+
+	boolean compression = false;
+	int compressionThreshold = 1024;	// don't compress the small body
 	
+	int maxBatchSize = 500;				// rawdata (or records) per POST
+	int maxBatchBytes = 512 * 1024;		// 512 KB per POST
+
 	/**
 	 * Build a RESTful client to access the IoT service.
 	 * 
@@ -61,11 +94,62 @@ public class OpenRESTfulClient {
 	 * @param apiKey
 	 */
 	public OpenRESTfulClient(String host, int port, String apiKey) {
-		this.host = host;
-		this.port = port;
-		this.apiKey = apiKey;
+		this(new Builder(host, port, apiKey));
+	}
+	
+	/**
+	 * Build a RESTful client with the connection pool settings.
+	 * 
+	 * @param builder
+	 */
+	protected OpenRESTfulClient(Builder builder) {
+		this.host = builder.host;
+		this.port = builder.port;
+		this.apiKey = builder.apiKey;
+		
+		protocol = (builder.tls)? "https" : "http";
+		compression = builder.compression;
+		compressionThreshold = builder.compressionThreshold;
+		
+		manager = new MonitoredConnectionManager(builder.connectionTtl);
+		
+		HttpConnectionManagerParams hcmp = manager.getParams();
+		hcmp.setMaxTotalConnections(builder.maxTotalConnections);
+		hcmp.setDefaultMaxConnectionsPerHost(builder.maxConnectionsPerHost);
+		hcmp.setConnectionTimeout(builder.connectionTimeout);
+		hcmp.setSoTimeout(builder.soTimeout);
+		hcmp.setTcpNoDelay(builder.tcpNoDelay);
+		if (builder.sendBufferSize > 0) {
+			hcmp.setSendBufferSize(builder.sendBufferSize);
+		}
+		if (builder.receiveBufferSize > 0) {
+			hcmp.setReceiveBufferSize(builder.receiveBufferSize);
+		}
+		
+		if (builder.idleTimeout > 0L) {
+			evictor = new IdleConnectionTimeoutThread();
+			evictor.setName("OpenRESTfulClient-evictor");
+			evictor.setConnectionTimeout(builder.idleTimeout);
+			evictor.setTimeoutInterval(Math.max(1000L, builder.idleTimeout / 2));
+			evictor.addConnectionManager(manager);
+			evictor.start();
+			
+		} else {
+			evictor = null;
+		}
+		
+		client = new HttpClient(manager);
+	}
+	
+	/**
+	 * Close all the connections. The client can't be used anymore.
+	 */
+	public void close() {
+		if (evictor != null) {
+			evictor.shutdown();
+		}
 		
-		client = new HttpClient(new MultiThreadedHttpConnectionManager());
+		manager.shutdown();
 	}
 	
 	public void enableTls(boolean enable) {
@@ -77,26 +161,129 @@ public class OpenRESTfulClient {
 		hcmp.setConnectionTimeout(timeout);
 		hcmp.setSoTimeout(timeout);
 	}
+
+	/**
+	 * Compress the request body by gzip and ask the server to compress the response body.
+	 * The compressed response (gzip or deflate) is decompressed transparently.
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * The request body shorter than the threshold (in characters) is sent as it is. Default is 1024.
+	 * 
+	 * @param compressionThreshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * Make sure the connection pool can serve the given concurrent requests to our host.
+	 *
+	 * @param connections
+	 */
+	void ensureMaxConnectionsPerHost(int connections) {
+		HttpConnectionManagerParams hcmp = client.getHttpConnectionManager().getParams();
+		if (hcmp.getDefaultMaxConnectionsPerHost() < connections) {
+			hcmp.setDefaultMaxConnectionsPerHost(connections);
+		}
+		if (hcmp.getMaxTotalConnections() < connections) {
+			hcmp.setMaxTotalConnections(connections);
+		}
+	}
+
+	/**
+	 * The connection pool with its utilization and waiting time.
+	 * 
+	 * @return
+	 */
+	public MonitoredConnectionManager getConnectionManager() {
+		return manager;
+	}
 	
-	public synchronized static final String now() {
-		return DF.format(new Date());
+	/**
+	 * Max number of rawdata (or records) in one POST of saveRawdatas() and saveRecords().
+	 *
+	 * @param maxBatchSize
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Max JSON body size (in UTF-8 bytes) of one POST of saveRawdatas() and saveRecords().
+	 *
+	 * @param maxBatchBytes
+	 */
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * The current ISO-8601 timestamp. It's lock-free.
+	 * 
+	 * @return
+	 */
+	public static final String now() {
+		return IsoTime.format(System.currentTimeMillis());
 	}
 	
 	protected InputStream http(HttpMethod hm) throws IOException {
 		hm.addRequestHeader("CK", apiKey);
+		if (compression) {
+			hm.addRequestHeader("Accept-Encoding", "gzip, deflate");
+		}
+		
 		int sc = client.executeMethod(hm);
 		
 		if (sc != HttpStatus.SC_OK) {
-			throw new IOException(String.format("[%d] %s", sc, hm.getStatusText()));
+			throw new HttpStatusException(sc, hm.getStatusText());
+		}
+		
+		return decode(hm, hm.getResponseBodyAsStream());
+	}
+	
+	protected InputStream decode(HttpMethod hm, InputStream is) throws IOException {
+		Header ce = hm.getResponseHeader("Content-Encoding");
+		if ((is == null) || (ce == null)) {
+			return is;
 		}
 		
-		return hm.getResponseBodyAsStream();
+		String encoding = ce.getValue().trim().toLowerCase();
+		boolean gzip = "gzip".equals(encoding) || "x-gzip".equals(encoding);
+		if (!gzip && !"deflate".equals(encoding)) {
+			return is;
+		}
+		
+		PushbackInputStream pis = new PushbackInputStream(is, 1);
+		int b = pis.read();
+		if (b < 0) {
+			return pis; // empty body, e.g. DELETE, there is no gzip header to read
+		}
+		pis.unread(b);
+		
+		return (gzip)? new GZIPInputStream(pis, 8192) : new InflaterInputStream(pis);
 	}
 	
 	protected InputStream post(EntityEnclosingMethod eem, String json) throws IOException {
-		if (json != null) {			
-			StringRequestEntity sre = new StringRequestEntity(json, "application/json", "UTF-8");		
-			eem.setRequestEntity(sre);
+		if (json != null) {
+			if (compression && (json.length() >= compressionThreshold)) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(json.length() / 4);
+				GZIPOutputStream gzip = new GZIPOutputStream(baos, 8192);
+				gzip.write(json.getBytes("UTF-8"));
+				gzip.close();
+				
+				eem.addRequestHeader("Content-Encoding", "gzip");
+				eem.setRequestEntity(new ByteArrayRequestEntity(baos.toByteArray(), "application/json; charset=UTF-8"));
+				
+			} else {
+				StringRequestEntity sre = new StringRequestEntity(json, "application/json", "UTF-8");		
+				eem.setRequestEntity(sre);
+			}
 		}
 		
 		return http(eem);
@@ -105,7 +292,142 @@ public class OpenRESTfulClient {
 	protected String encode(String s) throws IOException {
 		return URLEncoder.encode(s, "UTF-8");
 	}
+
+	protected static int utf8Length(String s) {
+		int bytes = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes += 1;
+
+			} else if (c < 0x800) {
+				bytes += 2;
+
+			} else if (Character.isHighSurrogate(c)) {
+				bytes += 4;
+				i++;
+
+			} else {
+				bytes += 3;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * GET the url and hold the connection until the returned stream is closed.
+	 * 
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	protected InputStream open(String url) throws IOException {
+		GetMethod gm = new GetMethod(url);
+		try {
+			InputStream is = http(gm);
+			
+			return new ReleasingInputStream(gm, (is != null)? is : new ByteArrayInputStream(new byte[0])); // no body
+			
+		} catch (IOException e) {
+			gm.releaseConnection();
+			throw e;
+			
+		} catch (RuntimeException e) {
+			gm.releaseConnection();
+			throw e;
+		}
+	}
+	
+	protected long transfer(String url, OutputStream out) throws IOException {
+		InputStream is = open(url);
+		try {
+			return IOUtils.copyLarge(is, out, new byte[64 * 1024]);
+			
+		} finally {
+			is.close();
+		}
+	}
 	
+	protected long transfer(String url, WritableByteChannel channel) throws IOException {
+		InputStream is = open(url);
+		try {
+			ReadableByteChannel rbc = Channels.newChannel(is);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			
+			long transferred = 0L;
+			while (rbc.read(buffer) >= 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					transferred += channel.write(buffer);
+				}
+				buffer.clear();
+			}
+			
+			return transferred;
+			
+		} finally {
+			is.close();
+		}
+	}
+	
+	protected long transfer(String url, Path file) throws IOException {
+		InputStream is = open(url);
+		try {
+			FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				ReadableByteChannel rbc = Channels.newChannel(is);
+				
+				long transferred = 0L;
+				for (;;) {
+					long n = fc.transferFrom(rbc, transferred, 1024 * 1024);
+					if (n <= 0L) { // end of stream
+						break;
+					}
+					transferred += n;
+				}
+				
+				return transferred;
+				
+			} finally {
+				fc.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+	
+	protected <T> Cursor<T> iterate(String url, Class<T> clazz) throws IOException {
+		GetMethod gm = new GetMethod(url);
+		try {
+			return new Cursor<T>(gm, JsonUtils.iterate(http(gm), clazz));
+			
+		} catch (IOException e) {
+			gm.releaseConnection();
+			throw e;
+			
+		} catch (RuntimeException e) {
+			gm.releaseConnection();
+			throw e;
+		}
+	}
+	
+	protected <T> long iterate(String url, Class<T> clazz, Callback<T> callback) throws IOException {
+		Cursor<T> cursor = iterate(url, clazz);
+		try {
+			long count = 0L;
+			while (cursor.hasNext()) {
+				callback.onData(cursor.next());
+				count += 1;
+			}
+			
+			return count;
+			
+		} finally {
+			cursor.close();
+		}
+	}
+
 	// ======
 	
 	/**
@@ -375,7 +697,128 @@ public class OpenRESTfulClient {
 	public void saveRawdata(String deviceId, String sensorId, String[] value) throws IOException {
 		saveRawdata(deviceId, sensorId, null, null, null, value);
 	}
-	
+
+	/**
+	 * Insert many rawdata (of any sensors) of the device into the data store.
+	 * The rawdata are sent with as few POSTs as possible, each POST is limited by setMaxBatchSize() and setMaxBatchBytes().
+	 *
+	 * @param deviceId
+	 * @param rawdatas		Rawdata.getId() is the sensor ID.
+	 * @throws IOException
+	 */
+	public void saveRawdatas(String deviceId, List<Rawdata> rawdatas) throws IOException {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/rawdata", host, port, deviceId);
+
+		saveBatch(url, rawdatas);
+	}
+
+	/**
+	 * POST the JSON array of the materials, split by setMaxBatchSize() and setMaxBatchBytes().
+	 *
+	 * @param url
+	 * @param materials
+	 * @throws IOException
+	 */
+	protected void saveBatch(String url, List<? extends Material> materials) throws IOException {
+		Batch batch = new Batch(url);
+		for (Material material : materials) {
+			batch.add(JsonUtils.toJson(material));
+		}
+		batch.flush();
+	}
+
+	/**
+	 * The JSON array being built, it's POSTed when it reaches setMaxBatchSize() or setMaxBatchBytes().
+	 */
+	protected class Batch {
+		final String url;
+		final StringBuilder json = new StringBuilder();
+		int count;
+		int bytes;
+
+		public Batch(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * Append one JSON object, the array is POSTed first if there is no room for it.
+		 *
+		 * @param object
+		 * @throws IOException
+		 */
+		public void add(String object) throws IOException {
+			int length = utf8Length(object);
+
+			if ((count > 0) && ((count >= maxBatchSize) || ((bytes + length + 2) > maxBatchBytes))) { // '[' + ',' + ']'
+				flush();
+			}
+
+			json.append((count == 0)? '[' : ',');
+			json.append(object);
+			count += 1;
+			bytes += length + 1;
+		}
+
+		public void flush() throws IOException {
+			if (count > 0) {
+				postBatch(url, json.append(']').toString());
+
+				json.setLength(0);
+				count = 0;
+				bytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Insert many rawdata (of any sensors) of the device into the data store.
+	 *
+	 * @param deviceId
+	 * @param rawdatas
+	 * @throws IOException
+	 */
+	public void saveRawdatas(String deviceId, Rawdata[] rawdatas) throws IOException {
+		saveRawdatas(deviceId, Arrays.asList(rawdatas));
+	}
+
+	/**
+	 * Insert many rawdata of many devices into the data store.
+	 * The rawdata are grouped by Rawdata.getDeviceId(), then each device is saved by saveRawdatas(deviceId, rawdatas).
+	 *
+	 * @param rawdatas		Rawdata.getDeviceId() must be given.
+	 * @throws IOException
+	 */
+	public void saveRawdatas(Collection<Rawdata> rawdatas) throws IOException {
+		Map<String, List<Rawdata>> devices = new LinkedHashMap<String, List<Rawdata>>();
+		for (Rawdata rawdata : rawdatas) {
+			String deviceId = rawdata.getDeviceId();
+			if (deviceId == null) {
+				throw new IOException("You must specify the device ID of each rawdata");
+			}
+
+			List<Rawdata> group = devices.get(deviceId);
+			if (group == null) {
+				group = new ArrayList<Rawdata>();
+				devices.put(deviceId, group);
+			}
+			group.add(rawdata);
+		}
+
+		for (Map.Entry<String, List<Rawdata>> e : devices.entrySet()) {
+			saveRawdatas(e.getKey(), e.getValue());
+		}
+	}
+
+	protected void postBatch(String url, String json) throws IOException {
+		PostMethod pm = new PostMethod(url);
+		try {
+			post(pm, json);
+
+		} finally {
+			pm.releaseConnection();
+		}
+	}
+
 	/**
 	 * Get the latest rawdata of the sensor. This rawdata means the current value of the sensor.
 	 * 
@@ -408,6 +851,83 @@ public class OpenRESTfulClient {
 	 * @throws IOException
 	 */
 	public Rawdata[] getRawdatas(String deviceId, String sensorId, String start, String end, Integer interval) throws IOException {
+		String url = getRawdatasUrl(deviceId, sensorId, start, end, interval);
+		
+		GetMethod gm = new GetMethod(url);
+		try {
+			return JsonUtils.fromJson(http(gm), Rawdata[].class);
+			
+		} finally {
+			gm.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Get the rawdata from the data store as columns - the epoch times, the values as doubles and the locations.
+	 * It takes much less memory than Rawdata[] for a long time range, but the values which are not numbers are lost (NaN).
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param interval		[optional] sampling interval in minute. Not yet supported.
+	 * @return
+	 * @throws IOException
+	 */
+	public RawdataSeries getRawdataSeries(String deviceId, String sensorId, String start, String end, Integer interval) throws IOException {
+		String url = getRawdatasUrl(deviceId, sensorId, start, end, interval);
+		
+		GetMethod gm = new GetMethod(url);
+		try {
+			RawdataSeries series = new RawdataSeries(deviceId, sensorId, 1024);
+			
+			InputStream is = http(gm);
+			if (is != null) {
+				new RawdataDecoder(JsonUtils.getJsonFactory()).decode(is, series);
+			}
+			series.trimToSize();
+			
+			return series;
+			
+		} finally {
+			gm.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Get the rawdata from the data store one by one. The rawdata is parsed when it is arrived,
+	 * so the whole time range is never held in memory.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param interval		[optional] sampling interval in minute. Not yet supported.
+	 * @param callback		called for each rawdata in order
+	 * @return				number of rawdata
+	 * @throws IOException
+	 */
+	public long getRawdatas(String deviceId, String sensorId, String start, String end, Integer interval, Callback<Rawdata> callback) throws IOException {
+		return iterate(getRawdatasUrl(deviceId, sensorId, start, end, interval), Rawdata.class, callback);
+	}
+	
+	/**
+	 * Get the rawdata from the data store as an iterator. The rawdata is parsed when you ask for it.
+	 * You must close the cursor to release the connection (it is released automatically after the last rawdata).
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param interval		[optional] sampling interval in minute. Not yet supported.
+	 * @return
+	 * @throws IOException
+	 */
+	public Cursor<Rawdata> iterateRawdatas(String deviceId, String sensorId, String start, String end, Integer interval) throws IOException {
+		return iterate(getRawdatasUrl(deviceId, sensorId, start, end, interval), Rawdata.class);
+	}
+	
+	protected String getRawdatasUrl(String deviceId, String sensorId, String start, String end, Integer interval) throws IOException {
 		if (start == null) {
 			throw new IOException("You must specify the start timestamp");
 		}		
@@ -427,15 +947,7 @@ public class OpenRESTfulClient {
 			sb.append('&');
 		}
 		
-		String url = sb.substring(0, sb.length() - 1);
-		
-		GetMethod gm = new GetMethod(url);
-		try {
-			return JsonUtils.fromJson(http(gm), Rawdata[].class);
-			
-		} finally {
-			gm.releaseConnection();
-		}
+		return sb.substring(0, sb.length() - 1);
 	}
 	
 	/**
@@ -475,7 +987,8 @@ public class OpenRESTfulClient {
 	// ======
 	
 	/**
-	 * Insert a snapshot (image) into the data store.
+	 * Insert a snapshot (image) into the data store. The image is streamed to the server by chunked transfer encoding,
+	 * give the length by the other overload if the server needs the content length.
 	 * 
 	 * @param deviceId
 	 * @param sensorId
@@ -489,25 +1002,74 @@ public class OpenRESTfulClient {
 	 * @throws IOException
 	 */
 	public void saveSnapshot(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, String imageName, String imageType, InputStream imageBody) throws IOException {
-		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/snapshot", host, port, deviceId);
-		
-		Rawdata rawdata = new Rawdata();
-		rawdata.setId(sensorId);
-		rawdata.setTime(time);
-		rawdata.setLat(lat);
-		rawdata.setLon(lon);
-		rawdata.setValue(value);
-		
-		String meta = JsonUtils.toJson(rawdata);
-		
-		PostMethod pm = new PostMethod(url);
-		try {		
-			StringPart mp = new StringPart("meta", meta, "UTF-8");
-			mp.setContentType("application/json");		
+		saveSnapshot(deviceId, sensorId, time, lat, lon, value, imageName, imageType, imageBody, -1L);
+	}
+	
+	/**
+	 * Insert a snapshot (image) into the data store. The image is streamed to the server without buffering.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value			[optional] you can give the empty string array.
+	 * @param imageName		
+	 * @param imageType		e.g. 'image/png', 'image/jpeg', 'image/gif'
+	 * @param imageBody		image byte stream
+	 * @param imageLength	bytes of the image. -1 if it is unknown, then the request is sent by chunked transfer encoding.
+	 * @throws IOException
+	 */
+	public void saveSnapshot(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, String imageName, String imageType, InputStream imageBody, long imageLength) throws IOException {
+		InputStreamPart isp = new InputStreamPart(imageName, imageType, imageBody, imageLength);
+		
+		saveSnapshot(deviceId, sensorId, time, lat, lon, value, isp);
+	}
 	
-			ByteArrayPart bap = new ByteArrayPart(imageName, imageType, IOUtils.toByteArray(imageBody));
+	/**
+	 * Insert a snapshot (image) into the data store. The image file is transferred from its channel to the server.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value			[optional] you can give the empty string array.
+	 * @param imageName		
+	 * @param imageType		e.g. 'image/png', 'image/jpeg', 'image/gif'
+	 * @param image			image file
+	 * @throws IOException
+	 */
+	public void saveSnapshot(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, String imageName, String imageType, Path image) throws IOException {
+		FileChannel fc = FileChannel.open(image, StandardOpenOption.READ);
+		try {
+			FileChannelPart fcp = new FileChannelPart(imageName, imageType, fc, 0L, fc.size());
+			
+			saveSnapshot(deviceId, sensorId, time, lat, lon, value, fcp);
+			
+		} finally {
+			fc.close();
+		}
+	}
+	
+	protected void saveSnapshot(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value, Part image) throws IOException {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/snapshot", host, port, deviceId);
+		
+		Rawdata rawdata = new Rawdata();
+		rawdata.setId(sensorId);
+		rawdata.setTime(time);
+		rawdata.setLat(lat);
+		rawdata.setLon(lon);
+		rawdata.setValue(value);
+		
+		String meta = JsonUtils.toJson(rawdata);
+		
+		PostMethod pm = new PostMethod(url);
+		try {		
+			StringPart mp = new StringPart("meta", meta, "UTF-8");
+			mp.setContentType("application/json");		
 			
-			MultipartRequestEntity mre = new MultipartRequestEntity(new Part[] { mp, bap }, pm.getParams());
+			MultipartRequestEntity mre = new MultipartRequestEntity(new Part[] { mp, image }, pm.getParams());
 			pm.setRequestEntity(mre);
 			
 			http(pm);
@@ -574,7 +1136,7 @@ public class OpenRESTfulClient {
 	}
 	
 	/**
-	 * Get the current snapshot body.
+	 * Get the current snapshot body. You must close the stream to release the connection.
 	 * 
 	 * @param deviceId
 	 * @param sensorId
@@ -582,19 +1144,12 @@ public class OpenRESTfulClient {
 	 * @throws IOException
 	 */
 	public InputStream getSnapshotBody(String deviceId, String sensorId) throws IOException {
-		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot", host, port, deviceId, sensorId);
-		
-		GetMethod gm = new GetMethod(url);
-		try {
-			return http(gm);
-			
-		} finally {
-			gm.releaseConnection();
-		}
+		return open(getSnapshotUrl(deviceId, sensorId, null));
 	}
 	
 	/**
 	 * Get the snapshot body by given snapshot ID which you can retrieve from meta data.
+	 * You must close the stream to release the connection.
 	 * 
 	 * @param deviceId
 	 * @param sensorId
@@ -603,15 +1158,96 @@ public class OpenRESTfulClient {
 	 * @throws IOException
 	 */
 	public InputStream getSnapshotBody(String deviceId, String sensorId, String imageId) throws IOException {
-		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot/%s", host, port, deviceId, sensorId, imageId);
-		
-		GetMethod gm = new GetMethod(url);
-		try {
-			return http(gm);
-			
-		} finally {
-			gm.releaseConnection();
+		return open(getSnapshotUrl(deviceId, sensorId, imageId));
+	}
+	
+	/**
+	 * Copy the current snapshot body into the stream.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param out			it will not be closed.
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, OutputStream out) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, null), out);
+	}
+	
+	/**
+	 * Copy the snapshot body by given snapshot ID into the stream.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param imageId
+	 * @param out			it will not be closed.
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, String imageId, OutputStream out) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, imageId), out);
+	}
+	
+	/**
+	 * Transfer the current snapshot body into the channel.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param channel		it will not be closed.
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, WritableByteChannel channel) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, null), channel);
+	}
+	
+	/**
+	 * Transfer the snapshot body by given snapshot ID into the channel.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param imageId
+	 * @param channel		it will not be closed.
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, String imageId, WritableByteChannel channel) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, imageId), channel);
+	}
+	
+	/**
+	 * Save the current snapshot body as the file.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param file			created or overwritten
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, Path file) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, null), file);
+	}
+	
+	/**
+	 * Save the snapshot body by given snapshot ID as the file.
+	 * 
+	 * @param deviceId
+	 * @param sensorId
+	 * @param imageId
+	 * @param file			created or overwritten
+	 * @return				bytes of the snapshot
+	 * @throws IOException
+	 */
+	public long getSnapshotBody(String deviceId, String sensorId, String imageId, Path file) throws IOException {
+		return transfer(getSnapshotUrl(deviceId, sensorId, imageId), file);
+	}
+	
+	protected String getSnapshotUrl(String deviceId, String sensorId, String imageId) {
+		if (imageId == null) { // the current one
+			return String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot", host, port, deviceId, sensorId);
 		}
+		
+		return String.format(protocol + "://%s:%d/iot/v1/device/%s/sensor/%s/snapshot/%s", host, port, deviceId, sensorId, imageId);
 	}
 	
 	/**
@@ -760,6 +1396,60 @@ public class OpenRESTfulClient {
 		}
 	}
 	
+	/**
+	 * Save many records (of any sheets) of the device.
+	 * The records are sent with as few POSTs as possible, each POST is limited by setMaxBatchSize() and setMaxBatchBytes().
+	 *
+	 * @param deviceId
+	 * @param records		Record.getId() is the sheet ID.
+	 * @throws IOException
+	 */
+	public void saveRecords(String deviceId, List<Record> records) throws IOException {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/record", host, port, deviceId);
+
+		saveBatch(url, records);
+	}
+
+	/**
+	 * Save many records (of any sheets) of the device.
+	 *
+	 * @param deviceId
+	 * @param records
+	 * @throws IOException
+	 */
+	public void saveRecords(String deviceId, Record[] records) throws IOException {
+		saveRecords(deviceId, Arrays.asList(records));
+	}
+
+	/**
+	 * Save the records of the batch into its sheet. Each record is written from the columns directly,
+	 * there is no Record or Map. The POSTs are limited by setMaxBatchSize() and setMaxBatchBytes().
+	 *
+	 * The parsed cells are saved in the canonical form, not as they were read, e.g. "1.50" is saved as "1.5"
+	 * and a '+08:00' datetime in UTC. Use saveRecords(String, Record[]) to save the exact strings.
+	 *
+	 * @param deviceId
+	 * @param records
+	 * @throws IOException
+	 */
+	public void saveRecords(String deviceId, RecordBatch records) throws IOException {
+		String url = String.format(protocol + "://%s:%d/iot/v1/device/%s/record", host, port, deviceId);
+
+		JsonFactory factory = JsonUtils.getJsonFactory();
+		StringWriter sw = new StringWriter();
+
+		Batch batch = new Batch(url);
+		for (int row = 0; row < records.size(); row++) {
+			JsonGenerator jg = factory.createJsonGenerator(sw); // buffers are recycled by the factory
+			records.writeJson(row, jg);
+			jg.close();
+
+			batch.add(sw.toString());
+			sw.getBuffer().setLength(0);
+		}
+		batch.flush();
+	}
+
 	/**
 	 * Get the latest record from the sheet.
 	 * 	
@@ -792,6 +1482,82 @@ public class OpenRESTfulClient {
 	 * @throws IOException
 	 */
 	public Record[] getRecords(String deviceId, String sheetId, String start, String end, Integer interval) throws IOException {
+		String url = getRecordsUrl(deviceId, sheetId, start, end, interval);
+		
+		GetMethod gm = new GetMethod(url);
+		try {
+			return JsonUtils.fromJson(http(gm), Record[].class);
+			
+		} finally {
+			gm.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Get the records from the sheet as columns typed by the sheet's definition (e.g. from getSheet()).
+	 * It takes much less memory than Record[] for a long time range. The fields not defined in the sheet are skipped.
+	 * 
+	 * @param deviceId
+	 * @param sheet
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional]
+	 * @param interval		[optional]
+	 * @return
+	 * @throws IOException
+	 */
+	public RecordBatch getRecordBatch(String deviceId, ISheet sheet, String start, String end, Integer interval) throws IOException {
+		String url = getRecordsUrl(deviceId, sheet.getId(), start, end, interval);
+		
+		GetMethod gm = new GetMethod(url);
+		try {
+			RecordBatch batch = new RecordBatch(sheet, 1024);
+			
+			InputStream is = http(gm);
+			if (is != null) {
+				new RecordDecoder(JsonUtils.getJsonFactory()).decode(is, batch);
+			}
+			
+			return batch;
+			
+		} finally {
+			gm.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Get the records from the sheet one by one. The record is parsed when it is arrived,
+	 * so the whole time range is never held in memory.
+	 * 
+	 * @param deviceId
+	 * @param sheetId
+	 * @param start
+	 * @param end
+	 * @param interval
+	 * @param callback		called for each record in order
+	 * @return				number of records
+	 * @throws IOException
+	 */
+	public long getRecords(String deviceId, String sheetId, String start, String end, Integer interval, Callback<Record> callback) throws IOException {
+		return iterate(getRecordsUrl(deviceId, sheetId, start, end, interval), Record.class, callback);
+	}
+	
+	/**
+	 * Get the records from the sheet as an iterator. The record is parsed when you ask for it.
+	 * You must close the cursor to release the connection (it is released automatically after the last record).
+	 * 
+	 * @param deviceId
+	 * @param sheetId
+	 * @param start
+	 * @param end
+	 * @param interval
+	 * @return
+	 * @throws IOException
+	 */
+	public Cursor<Record> iterateRecords(String deviceId, String sheetId, String start, String end, Integer interval) throws IOException {
+		return iterate(getRecordsUrl(deviceId, sheetId, start, end, interval), Record.class);
+	}
+	
+	protected String getRecordsUrl(String deviceId, String sheetId, String start, String end, Integer interval) throws IOException {
 		if (start == null) {
 			throw new IOException("You must specify the start timestamp");
 		}		
@@ -811,15 +1577,7 @@ public class OpenRESTfulClient {
 			sb.append('&');
 		}
 		
-		String url = sb.substring(0, sb.length() - 1);
-		
-		GetMethod gm = new GetMethod(url);
-		try {
-			return JsonUtils.fromJson(http(gm), Record[].class);
-			
-		} finally {
-			gm.releaseConnection();
-		}
+		return sb.substring(0, sb.length() - 1);
 	}
 	
 	/**
@@ -914,6 +1672,259 @@ public class OpenRESTfulClient {
 	
 	// ======
 	
+	/**
+	 * Receive the element of the query result one by one.
+	 *
+	 * @param <T>
+	 */
+	public static interface Callback<T> {
+		void onData(T data) throws IOException;
+	}
+	
+	/**
+	 * Iterate the query result which is parsed on demand. The connection is held until it is closed.
+	 *
+	 * @param <T>
+	 */
+	public static class Cursor<T> implements Iterator<T>, Closeable {
+		final HttpMethod method;
+		final JsonArrayIterator<T> iterator;
+		
+		boolean closed = false;
+		
+		protected Cursor(HttpMethod method, JsonArrayIterator<T> iterator) {
+			this.method = method;
+			this.iterator = iterator;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (closed) {
+				return false;
+			}
+			
+			boolean more = iterator.hasNext();
+			if (!more) { // the last one, release the connection now
+				try {
+					close();
+					
+				} catch (IOException e) {
+					LOG.warn(e.getMessage(), e);
+				}
+			}
+			
+			return more;
+		}
+		
+		@Override
+		public T next() {
+			if (closed) {
+				throw new NoSuchElementException();
+			}
+			
+			return iterator.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					iterator.close();
+					
+				} finally {
+					method.releaseConnection();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Build the OpenRESTfulClient with the connection pool settings.
+	 * 
+	 * <pre>
+	 * OpenRESTfulClient client = new OpenRESTfulClient.Builder(host, port, apiKey)
+	 * 								.setMaxConnectionsPerHost(50)
+	 * 								.setIdleTimeout(30000L)
+	 * 								.build();
+	 * </pre>
+	 */
+	public static class Builder {
+		final String host;
+		final int port;
+		final String apiKey;
+		
+		boolean tls = false;
+		boolean compression = false;
+		int compressionThreshold = 1024;
+		
+		int maxTotalConnections = 20;
+		int maxConnectionsPerHost = 20;
+		int connectionTimeout = 0;		// no timeout
+		int soTimeout = 0;				// no timeout
+		long idleTimeout = 0L;			// never evicted
+		long connectionTtl = 0L;		// live forever
+		boolean tcpNoDelay = true;
+		int sendBufferSize = -1;		// system default
+		int receiveBufferSize = -1;		// system default
+		
+		/**
+		 * @param host		server host
+		 * @param port		default is 8080
+		 * @param apiKey
+		 */
+		public Builder(String host, int port, String apiKey) {
+			this.host = host;
+			this.port = port;
+			this.apiKey = apiKey;
+		}
+		
+		public Builder enableTls(boolean tls) {
+			this.tls = tls;
+			return this;
+		}
+		
+		/**
+		 * Compress the request and response bodies by gzip.
+		 * 
+		 * @param compression
+		 * @return
+		 */
+		public Builder enableCompression(boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+		
+		/**
+		 * The request body shorter than the threshold (in characters) is not compressed, the gzip header costs more than it saves.
+		 * 
+		 * @param compressionThreshold		default is 1024
+		 * @return
+		 */
+		public Builder setCompressionThreshold(int compressionThreshold) {
+			this.compressionThreshold = compressionThreshold;
+			return this;
+		}
+		
+		/**
+		 * Max connections of the pool.
+		 * 
+		 * @param maxTotalConnections
+		 * @return
+		 */
+		public Builder setMaxTotalConnections(int maxTotalConnections) {
+			this.maxTotalConnections = maxTotalConnections;
+			return this;
+		}
+		
+		/**
+		 * Max connections to one host. The requests to the host wait for each other beyond it.
+		 * 
+		 * @param maxConnectionsPerHost
+		 * @return
+		 */
+		public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+			this.maxConnectionsPerHost = maxConnectionsPerHost;
+			return this;
+		}
+		
+		/**
+		 * Connect timeout in millisecond.
+		 * 
+		 * @param connectionTimeout
+		 * @return
+		 */
+		public Builder setConnectionTimeout(int connectionTimeout) {
+			this.connectionTimeout = connectionTimeout;
+			return this;
+		}
+		
+		/**
+		 * Read timeout in millisecond.
+		 * 
+		 * @param soTimeout
+		 * @return
+		 */
+		public Builder setSoTimeout(int soTimeout) {
+			this.soTimeout = soTimeout;
+			return this;
+		}
+		
+		/**
+		 * The connection idle longer than this (in millisecond) is closed by a background thread.
+		 * 
+		 * @param idleTimeout
+		 * @return
+		 */
+		public Builder setIdleTimeout(long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+			return this;
+		}
+		
+		/**
+		 * The connection older than this (in millisecond) is closed when it is returned to the pool.
+		 * 
+		 * @param connectionTtl
+		 * @return
+		 */
+		public Builder setConnectionTtl(long connectionTtl) {
+			this.connectionTtl = connectionTtl;
+			return this;
+		}
+		
+		public Builder setTcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+		
+		public Builder setSendBufferSize(int sendBufferSize) {
+			this.sendBufferSize = sendBufferSize;
+			return this;
+		}
+		
+		public Builder setReceiveBufferSize(int receiveBufferSize) {
+			this.receiveBufferSize = receiveBufferSize;
+			return this;
+		}
+		
+		public OpenRESTfulClient build() {
+			return new OpenRESTfulClient(this);
+		}
+	}
+	
+	/**
+	 * Release the connection when the response body is closed.
+	 */
+	static class ReleasingInputStream extends FilterInputStream {
+		final HttpMethod method;
+		
+		boolean released = false;
+		
+		public ReleasingInputStream(HttpMethod method, InputStream is) {
+			super(is);
+			
+			this.method = method;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!released) {
+				released = true;
+				try {
+					super.close();
+					
+				} finally {
+					method.releaseConnection();
+				}
+			}
+		}
+	}
+	
 	static class ByteArrayPart extends PartBase {
 		final byte[] body;
 		
@@ -932,4 +1943,78 @@ public class OpenRESTfulClient {
 			return body.length;
 		}
 	}
+	
+	/**
+	 * Copy the stream to the connection when the request is sent. It can be sent only once.
+	 */
+	static class InputStreamPart extends PartBase {
+		final InputStream body;
+		final long length;
+		
+		public InputStreamPart(String name, String contentType, InputStream body, long length) {
+			super(name, contentType, null, null);
+			this.body = body;
+			this.length = length;
+		}
+		
+		@Override
+		protected void sendData(OutputStream out) throws IOException {
+			byte[] buffer = new byte[8192];
+			
+			if (length < 0L) {
+				IOUtils.copyLarge(body, out, buffer);
+				
+			} else {
+				long copied = IOUtils.copyLarge(body, out, 0L, length, buffer);
+				if (copied != length) {
+					throw new IOException(String.format("Expect %d bytes but %d bytes", length, copied));
+				}
+			}
+		}
+		
+		@Override
+		protected long lengthOfData() throws IOException {
+			return length; // -1 means chunked
+		}
+		
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Transfer the region of the file channel to the connection. The file content never goes through the heap as a whole.
+	 */
+	static class FileChannelPart extends PartBase {
+		final FileChannel body;
+		final long position;
+		final long count;
+		
+		public FileChannelPart(String name, String contentType, FileChannel body, long position, long count) {
+			super(name, contentType, null, null);
+			this.body = body;
+			this.position = position;
+			this.count = count;
+		}
+		
+		@Override
+		protected void sendData(OutputStream out) throws IOException {
+			WritableByteChannel wbc = Channels.newChannel(out);
+			
+			long transferred = 0L;
+			while (transferred < count) {
+				long n = body.transferTo(position + transferred, count - transferred, wbc);
+				if (n <= 0L) {
+					throw new IOException(String.format("Expect %d bytes but %d bytes", count, transferred));
+				}
+				transferred += n;
+			}
+		}
+		
+		@Override
+		protected long lengthOfData() throws IOException {
+			return count;
+		}
+	}
 }
@@ -0,0 +1,394 @@
+package com.cht.iot.service.api;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.SegmentLog;
+
+/**
+ * The queue of the rawdata which OpenMqttClient is going to publish. The rawdata are removed from the outbox
+ * only after the broker has got them, so they are kept across the reconnections.
+ *
+ * There is only one consumer (the MQTT thread), it peeks the rawdata at the head then removes them after publishing.
+ */
+public interface Outbox {
+
+	/**
+	 * Put the message at the tail.
+	 *
+	 * @param message
+	 * @param overflow		what to do if the outbox is full.
+	 * @return				false if the message is dropped.
+	 * @throws IOException
+	 * @throws InterruptedException		waiting for room (Overflow.Block) is interrupted.
+	 * @throws IllegalStateException	the outbox is full (Overflow.FailFast).
+	 */
+	public boolean offer(Message message, Overflow overflow) throws IOException, InterruptedException;
+
+	/**
+	 * Get the rawdata at the head without removing them.
+	 *
+	 * @param max
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Message> peek(int max) throws IOException;
+
+	/**
+	 * Remove the rawdata at the head. They must be returned by the last peek().
+	 *
+	 * @param count
+	 * @throws IOException
+	 */
+	public void remove(int count) throws IOException;
+
+	public long size();
+
+	/**
+	 * Number of the old rawdata dropped to make room for the new ones (Overflow.DropOldest).
+	 *
+	 * @return
+	 */
+	public long getEvictedCount();
+
+	public void close() throws IOException;
+
+	// ======
+
+	public enum Overflow {
+		/**
+		 * Wait until the outbox has room. It slows down the producer when the broker is slow or disconnected.
+		 */
+		Block,
+
+		/**
+		 * Throw IllegalStateException.
+		 */
+		FailFast,
+
+		/**
+		 * The oldest rawdata (not being published) is dropped to make room for the new one.
+		 */
+		DropOldest,
+
+		/**
+		 * The new rawdata is dropped.
+		 */
+		DropNewest
+	}
+
+	public static class Message {
+		final String topic;
+		final Rawdata rawdata;
+		final int qos;
+		final OpenMqttClient.DeliveryCallback callback;
+
+		public Message(String topic, Rawdata rawdata, int qos, OpenMqttClient.DeliveryCallback callback) {
+			this.topic = topic;
+			this.rawdata = rawdata;
+			this.qos = qos;
+			this.callback = callback;
+		}
+
+		public Message(String topic, Rawdata rawdata) {
+			this(topic, rawdata, OpenMqttClient.QOS_1, null);
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public Rawdata getRawdata() {
+			return rawdata;
+		}
+
+		public int getQos() {
+			return qos;
+		}
+
+		/**
+		 * [optional] It's only kept in memory.
+		 *
+		 * @return
+		 */
+		public OpenMqttClient.DeliveryCallback getCallback() {
+			return callback;
+		}
+	}
+
+	/**
+	 * The rawdata are kept in a fixed ring buffer in memory, they are lost if the process is ended.
+	 */
+	public static class InMemory implements Outbox {
+		final Message[] ring;
+
+		int head;
+		int count;
+		int peeked;		// the messages at the head being published, never evicted
+
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition notFull = lock.newCondition();
+
+		final AtomicLong evicted = new AtomicLong();
+
+		public InMemory(int capacity) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("Capacity must be positive");
+			}
+
+			ring = new Message[capacity];
+		}
+
+		@Override
+		public boolean offer(Message message, Overflow overflow) throws InterruptedException {
+			Message evicted = null;
+
+			lock.lockInterruptibly();
+			try {
+				while (count == ring.length) {
+					if (overflow == Overflow.Block) {
+						notFull.await();
+
+					} else if (overflow == Overflow.FailFast) {
+						throw new IllegalStateException("Outbox is full");
+
+					} else if ((overflow == Overflow.DropOldest) && (peeked < count)) {
+						evicted = evict();
+
+					} else {
+						return false;
+					}
+				}
+
+				ring[(head + count) % ring.length] = message;
+				count += 1;
+
+				return true;
+
+			} finally {
+				lock.unlock();
+
+				if (evicted != null) {
+					dropped(evicted); // without the lock, the callback may save() again
+				}
+			}
+		}
+
+		/**
+		 * Drop the oldest message which is not being published. The peeked ones are shifted by one slot.
+		 *
+		 * @return		the dropped message
+		 */
+		protected Message evict() {
+			Message oldest = ring[(head + peeked) % ring.length];
+
+			for (int i = peeked; i > 0; i--) {
+				ring[(head + i) % ring.length] = ring[(head + i - 1) % ring.length];
+			}
+			ring[head] = null;
+
+			head = (head + 1) % ring.length;
+			count -= 1;
+
+			evicted.incrementAndGet();
+
+			return oldest;
+		}
+
+		protected void dropped(Message message) {
+			if (message.callback != null) {
+				try {
+					message.callback.onDropped(message.topic, message.rawdata);
+
+				} catch (Exception e) {
+					// not our business
+				}
+			}
+		}
+
+		@Override
+		public List<Message> peek(int max) {
+			lock.lock();
+			try {
+				int n = Math.min(max, count);
+
+				List<Message> messages = new ArrayList<Message>(n);
+				for (int i = 0; i < n; i++) {
+					messages.add(ring[(head + i) % ring.length]);
+				}
+				peeked = n;
+
+				return messages;
+
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void remove(int count) {
+			lock.lock();
+			try {
+				int n = Math.min(count, this.count);
+				for (int i = 0; i < n; i++) {
+					ring[head] = null;
+					head = (head + 1) % ring.length;
+				}
+				this.count -= n;
+				peeked = 0;
+
+				notFull.signalAll();
+
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long size() {
+			lock.lock();
+			try {
+				return count;
+
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long getEvictedCount() {
+			return evicted.get();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * The rawdata are kept in a SegmentLog on disk, they are published after the process is restarted.
+	 * Overflow.DropOldest is not supported (the log is append-only), the new rawdata is dropped instead.
+	 *
+	 * The callbacks are kept in memory, the rawdata from the last process have no callback.
+	 */
+	public static class OnDisk implements Outbox {
+		static final Charset UTF8 = Charset.forName("UTF-8");
+		static final byte RAWDATA = 1;		// QoS 1
+		static final byte RAWDATA_QOS0 = 2;
+		static final byte RAWDATA_QOS2 = 3;
+
+		final SegmentLog log;
+
+		long orphans;	// entries of the last process, no callback
+		final ArrayDeque<OpenMqttClient.DeliveryCallback> callbacks = new ArrayDeque<OpenMqttClient.DeliveryCallback>();
+		static final OpenMqttClient.DeliveryCallback NO_CALLBACK = new OpenMqttClient.DeliveryCallbackAdapter();
+
+		List<SegmentLog.Entry> peeked = new ArrayList<SegmentLog.Entry>();
+
+		public OnDisk(SegmentLog log) {
+			this.log = log;
+
+			orphans = log.size();
+		}
+
+		protected static byte toType(int qos) {
+			return (qos == 0)? RAWDATA_QOS0 : (qos == 2)? RAWDATA_QOS2 : RAWDATA;
+		}
+
+		protected static int toQos(byte type) {
+			return (type == RAWDATA_QOS0)? 0 : (type == RAWDATA_QOS2)? 2 : 1;
+		}
+
+		@Override
+		public synchronized boolean offer(Message message, Overflow overflow) throws IOException, InterruptedException {
+			byte[] payload = (message.topic + '\n' + JsonUtils.toJson(message.rawdata)).getBytes(UTF8);
+
+			while (!log.append(toType(message.qos), payload)) {
+				if (overflow == Overflow.Block) {
+					wait();
+
+				} else if (overflow == Overflow.FailFast) {
+					throw new IllegalStateException("Outbox is full");
+
+				} else {
+					return false;
+				}
+			}
+
+			callbacks.add((message.callback != null)? message.callback : NO_CALLBACK);
+
+			return true;
+		}
+
+		@Override
+		public List<Message> peek(int max) throws IOException {
+			List<SegmentLog.Entry> entries = log.read(max);
+
+			List<Message> messages = new ArrayList<Message>(entries.size());
+			synchronized (this) {
+				peeked = entries;
+
+				Iterator<OpenMqttClient.DeliveryCallback> it = callbacks.iterator();
+				long o = orphans;
+				for (SegmentLog.Entry entry : entries) {
+					String s = new String(entry.getPayload(), UTF8);
+					int i = s.indexOf('\n');
+
+					OpenMqttClient.DeliveryCallback callback = null;
+					if (o > 0L) {
+						o -= 1;
+
+					} else if (it.hasNext()) {
+						callback = it.next();
+					}
+
+					messages.add(new Message(s.substring(0, i), JsonUtils.fromJson(s.substring(i + 1), Rawdata.class), toQos(entry.getType()), (callback != NO_CALLBACK)? callback : null));
+				}
+			}
+
+			return messages;
+		}
+
+		@Override
+		public synchronized void remove(int count) throws IOException {
+			if (count > 0) {
+				log.commit(peeked.get(count - 1));
+
+				for (int i = 0; i < count; i++) {
+					if (orphans > 0L) {
+						orphans -= 1;
+
+					} else {
+						callbacks.poll();
+					}
+				}
+
+				notifyAll();
+			}
+		}
+
+		@Override
+		public long size() {
+			return log.size();
+		}
+
+		@Override
+		public long getEvictedCount() {
+			return 0L;
+		}
+
+		@Override
+		public void close() throws IOException {
+			log.close();
+		}
+	}
+}
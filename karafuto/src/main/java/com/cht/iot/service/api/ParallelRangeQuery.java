@@ -0,0 +1,292 @@
+package com.cht.iot.service.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.util.IsoTime;
+
+/**
+ * Split a long time range query into many sub-ranges and fetch them concurrently by OpenRESTfulClient.
+ * The results are merged back in time order.
+ */
+public class ParallelRangeQuery {
+	final OpenRESTfulClient client;
+	final int parallelism;
+	final long chunkDuration;
+
+	final ExecutorService executor;
+	final boolean ownExecutor;
+
+	final Semaphore permits;	// requests in flight, whoever's executor it is
+
+	/**
+	 * Create a query helper with its own worker threads (daemon, so a forgotten close() doesn't keep the JVM alive).
+	 *
+	 * NOTE: the connection pool of the client is grown to 'parallelism' connections per host if it's smaller,
+	 * or the requests will wait for each other in the pool. It's never shrunk and it applies to all the users of the client.
+	 *
+	 * @param client
+	 * @param parallelism		max concurrent requests
+	 * @param chunkDuration		time range of each request in millisecond
+	 */
+	public ParallelRangeQuery(OpenRESTfulClient client, int parallelism, long chunkDuration) {
+		this(client, parallelism, chunkDuration, null);
+	}
+
+	/**
+	 * Create a query helper with your executor. The executor is not shut down by close().
+	 * No more than 'parallelism' chunks are submitted to it at a time, however many threads it has.
+	 *
+	 * NOTE: the connection pool of the client is grown to 'parallelism' connections per host if it's smaller.
+	 *
+	 * @param client
+	 * @param parallelism		max concurrent requests
+	 * @param chunkDuration		time range of each request in millisecond
+	 * @param executor			[optional] null to create the own worker threads
+	 */
+	public ParallelRangeQuery(OpenRESTfulClient client, int parallelism, long chunkDuration, ExecutorService executor) {
+		if ((parallelism < 1) || (chunkDuration < 1L)) {
+			throw new IllegalArgumentException("Parallelism and chunk duration must be positive");
+		}
+
+		this.client = client;
+		this.parallelism = parallelism;
+		this.chunkDuration = chunkDuration;
+
+		permits = new Semaphore(parallelism);
+
+		client.ensureMaxConnectionsPerHost(parallelism);
+
+		if (executor != null) {
+			this.executor = executor;
+			ownExecutor = false;
+
+		} else {
+			this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ParallelRangeQuery-" + count.incrementAndGet());
+					t.setDaemon(true);
+
+					return t;
+				}
+			});
+			ownExecutor = true;
+		}
+	}
+
+	/**
+	 * Stop the own worker threads.
+	 */
+	public void close() {
+		if (ownExecutor) {
+			executor.shutdownNow();
+		}
+	}
+
+	protected static long parse(String time) throws IOException {
+		try {
+			return IsoTime.parse(time);
+
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Split [start, end) into the chunks.
+	 *
+	 * @param start
+	 * @param end
+	 * @return		the boundaries, chunk i is [boundaries[i], boundaries[i + 1])
+	 * @throws IOException
+	 */
+	protected String[] split(String start, String end) throws IOException {
+		long from = parse(start);
+		long to = (end != null)? parse(end) : System.currentTimeMillis();
+
+		List<String> boundaries = new ArrayList<String>();
+		boundaries.add(start);
+		for (long t = from + chunkDuration; t < to; t += chunkDuration) {
+			boundaries.add(IsoTime.format(t));
+		}
+		boundaries.add((end != null)? end : IsoTime.format(to));
+
+		return boundaries.toArray(new String[boundaries.size()]);
+	}
+
+	/**
+	 * Is the element time before the end of its chunk ? The element at the boundary belongs to the next chunk.
+	 */
+	protected static boolean before(long time, long end) {
+		return (time == Rawdata.NO_TIME) || (time < end); // we can't tell, keep it
+	}
+
+	/**
+	 * Run the chunks, no more than 'parallelism' of them at a time, and merge the results in order.
+	 * The next chunk is submitted when one is done, so the executor never has more than that.
+	 */
+	protected <T> List<T> query(List<Callable<T[]>> chunks) throws IOException {
+		List<Future<T[]>> futures = new ArrayList<Future<T[]>>(chunks.size());
+		try {
+			for (Callable<T[]> chunk : chunks) {
+				permits.acquire();
+
+				FutureTask<T[]> task = new FutureTask<T[]>(chunk) {
+					@Override
+					protected void done() { // completed, failed or cancelled
+						permits.release();
+					}
+				};
+				futures.add(task);
+
+				try {
+					executor.execute(task);
+
+				} catch (RuntimeException e) { // rejected
+					task.cancel(false);
+					throw e;
+				}
+			}
+
+			List<T> merged = new ArrayList<T>();
+			for (Future<T[]> future : futures) {
+				for (T t : future.get()) {
+					merged.add(t);
+				}
+			}
+
+			return merged;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new IOException("Query is interrupted", e);
+
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			throw new IOException(cause.getMessage(), cause);
+
+		} finally {
+			for (Future<T[]> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	// ======
+
+	/**
+	 * Get the rawdata from the data store with concurrent sub-range queries.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional] now if it is not given.
+	 * @param interval		[optional] sampling interval in minute. Not yet supported.
+	 * @return				rawdata in time order
+	 * @throws IOException
+	 */
+	public Rawdata[] getRawdatas(final String deviceId, final String sensorId, String start, String end, final Integer interval) throws IOException {
+		if (start == null) {
+			throw new IOException("You must specify the start timestamp");
+		}
+
+		final String[] boundaries = split(start, end);
+
+		List<Callable<Rawdata[]>> chunks = new ArrayList<Callable<Rawdata[]>>();
+		for (int i = 0; i < boundaries.length - 1; i++) {
+			final int chunk = i;
+			chunks.add(new Callable<Rawdata[]>() {
+				@Override
+				public Rawdata[] call() throws Exception {
+					Rawdata[] rawdatas = client.getRawdatas(deviceId, sensorId, boundaries[chunk], boundaries[chunk + 1], interval);
+					if (chunk == boundaries.length - 2) { // the last one is inclusive
+						return rawdatas;
+					}
+
+					long to = parse(boundaries[chunk + 1]);
+
+					List<Rawdata> within = new ArrayList<Rawdata>(rawdatas.length);
+					for (Rawdata rawdata : rawdatas) {
+						if (before(rawdata.getTimestamp(), to)) {
+							within.add(rawdata);
+						}
+					}
+
+					return within.toArray(new Rawdata[within.size()]);
+				}
+			});
+		}
+
+		List<Rawdata> merged = query(chunks);
+
+		return merged.toArray(new Rawdata[merged.size()]);
+	}
+
+	/**
+	 * Get the records from the sheet with concurrent sub-range queries.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param start			ISO-8601 timestamp.
+	 * @param end			[optional] now if it is not given.
+	 * @param interval		[optional]
+	 * @return				records in time order
+	 * @throws IOException
+	 */
+	public Record[] getRecords(final String deviceId, final String sheetId, String start, String end, final Integer interval) throws IOException {
+		if (start == null) {
+			throw new IOException("You must specify the start timestamp");
+		}
+
+		final String[] boundaries = split(start, end);
+
+		List<Callable<Record[]>> chunks = new ArrayList<Callable<Record[]>>();
+		for (int i = 0; i < boundaries.length - 1; i++) {
+			final int chunk = i;
+			chunks.add(new Callable<Record[]>() {
+				@Override
+				public Record[] call() throws Exception {
+					Record[] records = client.getRecords(deviceId, sheetId, boundaries[chunk], boundaries[chunk + 1], interval);
+					if (chunk == boundaries.length - 2) { // the last one is inclusive
+						return records;
+					}
+
+					long to = parse(boundaries[chunk + 1]);
+
+					List<Record> within = new ArrayList<Record>(records.length);
+					for (Record record : records) {
+						if (before(record.getTimestamp(), to)) {
+							within.add(record);
+						}
+					}
+
+					return within.toArray(new Record[within.size()]);
+				}
+			});
+		}
+
+		List<Record> merged = query(chunks);
+
+		return merged.toArray(new Record[merged.size()]);
+	}
+}
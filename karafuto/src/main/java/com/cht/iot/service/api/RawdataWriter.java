@@ -0,0 +1,375 @@
+package com.cht.iot.service.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+
+/**
+ * Buffer the rawdata in memory and save them by OpenRESTfulClient.saveRawdatas() in background.
+ *
+ * The buffer is flushed when it has 'batchSize' rawdata or the first rawdata has waited for 'lingerTime'.
+ */
+public class RawdataWriter {
+	static final Logger LOG = LoggerFactory.getLogger(RawdataWriter.class);
+
+	final OpenRESTfulClient client;
+	final BlockingQueue<Rawdata> queue;
+
+	int batchSize = 500;
+	long lingerTime = 200L;	// 200 milliseconds
+	volatile Overflow overflow = Overflow.Block;
+
+	Thread thread;
+	volatile boolean running;	// the flusher is taking the rawdata
+	volatile boolean stopped;	// nobody will take the rawdata any more
+
+	final AtomicLong written = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong flushes = new AtomicLong();
+	final AtomicLong flushed = new AtomicLong();
+	final AtomicLong flushLatency = new AtomicLong();
+	volatile long lastFlushLatency;
+	volatile long maxFlushLatency;
+	volatile int lastBatchSize;
+
+	/**
+	 * Create a writer. It will flush the rawdata after you call RawdataWriter.start();
+	 *
+	 * @param client
+	 * @param capacity		max rawdata in the buffer
+	 */
+	public RawdataWriter(OpenRESTfulClient client, int capacity) {
+		this.client = client;
+
+		queue = new ArrayBlockingQueue<Rawdata>(capacity);
+	}
+
+	/**
+	 * Max rawdata of one flush.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How long (in millisecond) the rawdata can wait for the other rawdata before flushing.
+	 *
+	 * @param lingerTime
+	 */
+	public void setLingerTime(long lingerTime) {
+		this.lingerTime = lingerTime;
+	}
+
+	/**
+	 * What to do when the buffer is full.
+	 *
+	 * @param overflow
+	 */
+	public void setOverflow(Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	// ======
+
+	/**
+	 * Put the rawdata into the buffer. The timestamp is assigned if it is not specified.
+	 * The rawdata is dropped after stop(), and write() never waits before start() (the buffer is filled up to its capacity).
+	 *
+	 * @param rawdata		Rawdata.getDeviceId() must be given.
+	 * @return				false if the rawdata is dropped.
+	 */
+	public boolean write(Rawdata rawdata) {
+		if (rawdata.getDeviceId() == null) {
+			throw new IllegalArgumentException("You must specify the device ID of the rawdata");
+		}
+
+		if (rawdata.getTime() == null) {
+			rawdata.setTime(OpenRESTfulClient.now()); // the moment we got it, not the moment we flush it
+		}
+
+		boolean accepted;
+		if (stopped) {
+			accepted = false; // nobody will take it
+
+		} else if (overflow == Overflow.DropOldest) {
+			while (!queue.offer(rawdata)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			accepted = true;
+
+		} else if ((overflow == Overflow.Block) && running) {
+			try {
+				while (!(accepted = queue.offer(rawdata, 100L, TimeUnit.MILLISECONDS)) && running) { // or stop() leaves it waiting forever
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				accepted = false;
+			}
+		} else {
+			accepted = queue.offer(rawdata); // DropNewest, or Block before start() as nobody takes it yet
+		}
+
+		if (accepted) {
+			written.incrementAndGet();
+
+		} else {
+			dropped.incrementAndGet();
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Put the rawdata into the buffer.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value
+	 * @return				false if the rawdata is dropped.
+	 */
+	public boolean write(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value) {
+		Rawdata rawdata = new Rawdata();
+		rawdata.setDeviceId(deviceId);
+		rawdata.setId(sensorId);
+		rawdata.setTime(time);
+		rawdata.setLat(lat);
+		rawdata.setLon(lon);
+		rawdata.setValue(value);
+
+		return write(rawdata);
+	}
+
+	/**
+	 * Put the rawdata into the buffer.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param value
+	 * @return				false if the rawdata is dropped.
+	 */
+	public boolean write(String deviceId, String sensorId, String value) {
+		return write(deviceId, sensorId, null, null, null, new String[] { value });
+	}
+
+	// ======
+
+	/**
+	 * Start the background flushing.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return; // already
+		}
+
+		running = true;
+		stopped = false;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				process();
+			}
+		}, "RawdataWriter");
+		thread.start();
+	}
+
+	/**
+	 * Stop the background flushing. The buffered rawdata will be flushed before the thread is ended,
+	 * the ones written after this are dropped.
+	 */
+	public synchronized void stop() {
+		running = false;
+		stopped = true;
+
+		if (thread != null) {
+			Thread t = thread;
+			thread = null;
+			t.interrupt();
+		}
+	}
+
+	protected void process() {
+		List<Rawdata> batch = new ArrayList<Rawdata>(batchSize);
+
+		try {
+			while (running) {
+				batch.add(queue.take());
+
+				long deadline = System.currentTimeMillis() + lingerTime;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					if (batch.size() >= batchSize) {
+						break;
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0L) {
+						break;
+					}
+
+					Rawdata rawdata = queue.poll(remaining, TimeUnit.MILLISECONDS);
+					if (rawdata == null) {
+						break;
+					}
+					batch.add(rawdata);
+				}
+
+				flush(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException ie) {
+		}
+
+		// flush what we have got
+		queue.drainTo(batch);
+		for (int i = 0; i < batch.size(); i += batchSize) {
+			flush(batch.subList(i, Math.min(i + batchSize, batch.size())));
+		}
+	}
+
+	protected void flush(List<Rawdata> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long ctm = System.currentTimeMillis();
+		try {
+			client.saveRawdatas(batch);
+
+			flushed.addAndGet(batch.size());
+
+		} catch (Exception e) {
+			failed.addAndGet(batch.size());
+
+			LOG.error("Failed to flush " + batch.size() + " rawdata", e);
+		}
+
+		long latency = System.currentTimeMillis() - ctm;
+
+		flushes.incrementAndGet();
+		flushLatency.addAndGet(latency);
+		lastFlushLatency = latency;
+		if (latency > maxFlushLatency) {
+			maxFlushLatency = latency;
+		}
+		lastBatchSize = batch.size();
+	}
+
+	// ======
+
+	/**
+	 * Number of rawdata waiting in the buffer.
+	 *
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Number of rawdata accepted by write().
+	 *
+	 * @return
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * Number of rawdata dropped because the buffer was full, or the writer was not running.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of rawdata which were failed to save.
+	 *
+	 * @return
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Number of rawdata which were saved.
+	 *
+	 * @return
+	 */
+	public long getFlushedCount() {
+		return flushed.get();
+	}
+
+	/**
+	 * Number of flushes.
+	 *
+	 * @return
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	public double getAverageBatchSize() {
+		long n = flushes.get();
+		return (n == 0L)? 0.0 : ((double) (flushed.get() + failed.get())) / n;
+	}
+
+	/**
+	 * Latency of the last flush in millisecond.
+	 *
+	 * @return
+	 */
+	public long getLastFlushLatency() {
+		return lastFlushLatency;
+	}
+
+	public long getMaxFlushLatency() {
+		return maxFlushLatency;
+	}
+
+	public double getAverageFlushLatency() {
+		long n = flushes.get();
+		return (n == 0L)? 0.0 : ((double) flushLatency.get()) / n;
+	}
+
+	// ======
+
+	public enum Overflow {
+		/**
+		 * write() waits until the buffer has room.
+		 */
+		Block,
+
+		/**
+		 * write() returns false and the new rawdata is dropped.
+		 */
+		DropNewest,
+
+		/**
+		 * The oldest rawdata in the buffer is dropped to make room for the new one.
+		 */
+		DropOldest
+	}
+}
@@ -0,0 +1,114 @@
+package com.cht.iot.service.api;
+
+import java.util.Random;
+
+/**
+ * How long OpenMqttClient waits before the next connection attempt.
+ */
+public interface ReconnectPolicy {
+
+	/**
+	 * The delay before the attempt.
+	 *
+	 * @param attempt		1 is the first attempt after the connection is lost (or failed), it's reset when the connection is built.
+	 * @return				delay in millisecond, 0 is now.
+	 */
+	public long getDelay(int attempt);
+
+	// ======
+
+	/**
+	 * Always wait for the same delay.
+	 */
+	public static class Fixed implements ReconnectPolicy {
+		final long delay;
+
+		public Fixed(long delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public long getDelay(int attempt) {
+			return delay;
+		}
+	}
+
+	/**
+	 * The delay is multiplied after each failed attempt up to the max delay, and a random part of it is cut off (jitter)
+	 * so the clients don't reconnect at the same time after the broker is restarted.
+	 */
+	public static class ExponentialBackoff implements ReconnectPolicy {
+		final long initialDelay;
+		final long maxDelay;
+
+		double multiplier = 2.0;
+		double jitter = 0.5;
+		boolean immediateFirstRetry = true;
+
+		final Random random = new Random();
+
+		/**
+		 * @param initialDelay		in millisecond
+		 * @param maxDelay			in millisecond
+		 */
+		public ExponentialBackoff(long initialDelay, long maxDelay) {
+			this.initialDelay = initialDelay;
+			this.maxDelay = maxDelay;
+		}
+
+		/**
+		 * Default is 2.
+		 *
+		 * @param multiplier
+		 * @return
+		 */
+		public ExponentialBackoff setMultiplier(double multiplier) {
+			this.multiplier = multiplier;
+
+			return this;
+		}
+
+		/**
+		 * Max part (0 ~ 1) of the delay to cut off randomly. Default is 0.5, the delay is between 50% and 100%.
+		 *
+		 * @param jitter
+		 * @return
+		 */
+		public ExponentialBackoff setJitter(double jitter) {
+			this.jitter = jitter;
+
+			return this;
+		}
+
+		/**
+		 * Try again without delay at the first time, a short network glitch is recovered at once. Default is true.
+		 *
+		 * @param immediateFirstRetry
+		 * @return
+		 */
+		public ExponentialBackoff setImmediateFirstRetry(boolean immediateFirstRetry) {
+			this.immediateFirstRetry = immediateFirstRetry;
+
+			return this;
+		}
+
+		@Override
+		public long getDelay(int attempt) {
+			if (immediateFirstRetry) {
+				if (attempt <= 1) {
+					return 0L;
+				}
+				attempt -= 1;
+			}
+
+			double delay = Math.min(initialDelay * Math.pow(multiplier, Math.max(attempt - 1, 0)), maxDelay);
+
+			double r;
+			synchronized (random) {
+				r = random.nextDouble();
+			}
+
+			return (long) (delay * (1.0 - (jitter * r)));
+		}
+	}
+}
@@ -0,0 +1,602 @@
+package com.cht.iot.service.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cht.iot.persistence.entity.data.Material;
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.SegmentLog;
+
+/**
+ * Save the rawdata and records by OpenRESTfulClient. If the server is unreachable, they are kept in a spool on disk
+ * (SegmentLog) and replayed in order, batched, by a background thread when the server is back.
+ *
+ * Once the spool is not empty, the new rawdata and records are appended to the spool too, or they would overtake the old ones.
+ * The delivery is at-least-once, a batch may be sent again if the connection is broken before the server replies.
+ *
+ * The HTTP request is sent without holding the lock, the callers (and the replayer) don't wait for each other's round trip.
+ * The rawdata and records saved by one thread are kept in order, the concurrent ones have no order anyway.
+ */
+public class StoreAndForward {
+	static final Logger LOG = LoggerFactory.getLogger(StoreAndForward.class);
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final byte RAWDATA = 1;
+	static final byte RECORD = 2;
+
+	final OpenRESTfulClient client;
+	final SegmentLog spool;
+
+	int batchSize = 500;
+	long retryDelay = 1000L;		// 1 second, doubled after each failure
+	long maxRetryDelay = 60000L;	// 1 minute
+	int maxAttempts = 5;			// of an entry which always fails, then it is skipped
+
+	final Object lock = new Object();
+
+	Thread thread;
+
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong spooled = new AtomicLong();
+	final AtomicLong replayed = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong replays = new AtomicLong();
+	final AtomicLong replayTime = new AtomicLong();
+	volatile long lastReplayLatency;
+	long commits;	// by the replayer, to tell if the head of the spool is moved
+
+	/**
+	 * Create the store-and-forward with the spool. You have to call start() to replay the spool.
+	 *
+	 * @param client
+	 * @param spool
+	 */
+	public StoreAndForward(OpenRESTfulClient client, SegmentLog spool) {
+		this.client = client;
+		this.spool = spool;
+	}
+
+	/**
+	 * Create the store-and-forward with the spool in the directory. The spool takes 16 MB * 16 at most.
+	 *
+	 * @param client
+	 * @param dir
+	 * @throws IOException
+	 */
+	public StoreAndForward(OpenRESTfulClient client, File dir) throws IOException {
+		this(client, new SegmentLog(dir, 16 * 1024 * 1024, 16));
+	}
+
+	/**
+	 * Max rawdata (or records) of one replay.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How many times to replay the entry at the head of the spool which fails by an error (not the server or the network),
+	 * then it's skipped and counted as rejected, or it would hold up all the others.
+	 *
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * How long (in millisecond) to wait before replaying again after a failure. It's doubled after each failure up to maxRetryDelay.
+	 *
+	 * @param retryDelay
+	 * @param maxRetryDelay
+	 */
+	public void setRetryDelay(long retryDelay, long maxRetryDelay) {
+		this.retryDelay = retryDelay;
+		this.maxRetryDelay = maxRetryDelay;
+	}
+
+	// ======
+
+	/**
+	 * Start the background replaying.
+	 */
+	public synchronized void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				process();
+			}
+		}, "StoreAndForward");
+		thread.start();
+	}
+
+	/**
+	 * Stop the background replaying and close the spool. The rest of the spool will be replayed after restarting.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			Thread t = thread;
+			thread = null;
+			t.interrupt();
+
+			try {
+				t.join();
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		try {
+			spool.close();
+
+		} catch (IOException e) {
+			LOG.error("Failed to close the spool", e);
+		}
+	}
+
+	// ======
+
+	/**
+	 * Insert one rawdata into the data store, or into the spool if the server is unreachable.
+	 * The timestamp is assigned if it is not specified, so the replayed rawdata keep the moment we got it.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param lat			[optional]
+	 * @param lon			[optional]
+	 * @param value
+	 * @throws IOException	the server rejects the rawdata or the spool is full.
+	 */
+	public void saveRawdata(String deviceId, String sensorId, String time, Float lat, Float lon, String[] value) throws IOException {
+		if (time == null) {
+			time = OpenRESTfulClient.now();
+		}
+
+		if (isDirect()) {
+			try {
+				client.saveRawdata(deviceId, sensorId, time, lat, lon, value);
+				sent.incrementAndGet();
+
+				return;
+
+			} catch (HttpStatusException e) {
+				if (!e.isRetriable()) {
+					throw e; // it's never accepted
+				}
+
+				LOG.warn("Failed to save the rawdata, spool it - " + e.getMessage());
+
+			} catch (IOException e) {
+				LOG.warn("Failed to save the rawdata, spool it - " + e.getMessage());
+			}
+		}
+
+		Rawdata rawdata = new Rawdata();
+		rawdata.setId(sensorId);
+		rawdata.setTime(time);
+		rawdata.setLat(lat);
+		rawdata.setLon(lon);
+		rawdata.setValue(value);
+
+		store(RAWDATA, deviceId, JsonUtils.toJson(rawdata));
+	}
+
+	/**
+	 * Insert one rawdata into the data store, or into the spool if the server is unreachable.
+	 *
+	 * @param deviceId
+	 * @param sensorId
+	 * @param value
+	 * @throws IOException
+	 */
+	public void saveRawdata(String deviceId, String sensorId, String value) throws IOException {
+		saveRawdata(deviceId, sensorId, null, null, null, new String[] { value });
+	}
+
+	/**
+	 * Save a record into a sheet, or into the spool if the server is unreachable.
+	 *
+	 * @param deviceId
+	 * @param sheetId
+	 * @param time			[optional] ISO-8601 timestamp.
+	 * @param value
+	 * @throws IOException	the server rejects the record or the spool is full.
+	 */
+	public void saveRecord(String deviceId, String sheetId, String time, Map<String, String> value) throws IOException {
+		if (time == null) {
+			time = OpenRESTfulClient.now();
+		}
+
+		if (isDirect()) {
+			try {
+				client.saveRecord(deviceId, sheetId, time, value);
+				sent.incrementAndGet();
+
+				return;
+
+			} catch (HttpStatusException e) {
+				if (!e.isRetriable()) {
+					throw e;
+				}
+
+				LOG.warn("Failed to save the record, spool it - " + e.getMessage());
+
+			} catch (IOException e) {
+				LOG.warn("Failed to save the record, spool it - " + e.getMessage());
+			}
+		}
+
+		Record record = new Record();
+		record.setId(sheetId);
+		record.setTime(time);
+		record.setValue(value);
+
+		store(RECORD, deviceId, JsonUtils.toJson(record));
+	}
+
+	/**
+	 * Can it be sent to the server directly ? Only if there is nothing in the spool to overtake.
+	 */
+	protected boolean isDirect() {
+		synchronized (lock) {
+			return spool.isEmpty();
+		}
+	}
+
+	protected void store(byte type, String deviceId, String json) throws IOException {
+		byte[] payload = (deviceId + '\n' + json).getBytes(UTF8);
+
+		synchronized (lock) {
+			if (!spool.append(type, payload)) {
+				dropped.incrementAndGet();
+
+				throw new IOException("The spool is full");
+			}
+
+			spooled.incrementAndGet();
+
+			lock.notifyAll(); // wake up the replayer
+		}
+	}
+
+	// ======
+
+	protected void process() {
+		long delay = retryDelay;
+		int failures = 0;
+
+		while (thread != null) {
+			try {
+				long commits = this.commits;
+				try {
+					List<SegmentLog.Entry> entries = spool.read(batchSize);
+					if (entries.isEmpty()) {
+						synchronized (lock) {
+							if (spool.isEmpty()) {
+								lock.wait(1000L);
+							}
+						}
+						continue;
+					}
+
+					replay(entries);
+
+					delay = retryDelay;
+					failures = 0;
+
+				} catch (IOException e) {
+					LOG.warn("Failed to replay the spool, retry after " + delay + " ms - " + e.getMessage());
+
+					Thread.sleep(delay);
+
+					delay = Math.min(delay * 2L, maxRetryDelay);
+
+				} catch (RuntimeException e) {
+					failures = (this.commits != commits)? 1 : failures + 1; // the head is a new one if something was committed
+					if (failures >= maxAttempts) {
+						skip(e); // don't let a broken entry hold up the spool
+
+						failures = 0;
+						continue;
+					}
+
+					LOG.error("Failed to replay the spool, retry after " + delay + " ms", e);
+
+					Thread.sleep(delay); // don't spin on a broken entry
+
+					delay = Math.min(delay * 2L, maxRetryDelay);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Remove the entry at the head of the spool which fails again and again.
+	 */
+	protected void skip(RuntimeException cause) {
+		try {
+			List<SegmentLog.Entry> head = spool.read(1);
+			if (!head.isEmpty()) {
+				commit(head.get(0));
+				rejected.incrementAndGet();
+
+				LOG.error("Skip the spooled entry which failed " + maxAttempts + " times - " + new String(head.get(0).getPayload(), UTF8), cause);
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to skip the spooled entry", e);
+		}
+	}
+
+	/**
+	 * Replay the entries as the runs of the same device and type.
+	 */
+	protected void replay(List<SegmentLog.Entry> entries) throws IOException {
+		int i = 0;
+		while (i < entries.size()) {
+			SegmentLog.Entry first = entries.get(i);
+			String deviceId = deviceId(first);
+
+			int j = i + 1;
+			while ((j < entries.size()) && (entries.get(j).getType() == first.getType()) && deviceId.equals(deviceId(entries.get(j)))) {
+				j++;
+			}
+
+			List<SegmentLog.Entry> run = entries.subList(i, j);
+
+			long ctm = System.currentTimeMillis();
+
+			if (first.getType() == RAWDATA) {
+				replay(deviceId, run, Rawdata.class);
+
+			} else if (first.getType() == RECORD) {
+				replay(deviceId, run, Record.class);
+
+			} else {
+				rejected.addAndGet(run.size()); // it can never be sent
+
+				LOG.error("Skip " + run.size() + " spooled entries of unknown type - " + first.getType());
+
+				commit(run.get(run.size() - 1));
+			}
+
+			long latency = System.currentTimeMillis() - ctm;
+
+			replays.incrementAndGet();
+			replayTime.addAndGet(latency);
+			lastReplayLatency = latency;
+
+			i = j;
+		}
+	}
+
+	/**
+	 * Replay one run, split into the POSTs as the client does (by setMaxBatchSize() and setMaxBatchBytes()).
+	 * Each POST is committed after the server accepts it, so the ones after a failure are sent again.
+	 * The entry which can't be decoded is skipped.
+	 */
+	protected void replay(String deviceId, List<SegmentLog.Entry> run, Class<? extends Material> clazz) throws IOException {
+		List<SegmentLog.Entry> entries = new ArrayList<SegmentLog.Entry>();
+		List<Material> materials = new ArrayList<Material>();
+		int bytes = 0;
+
+		for (SegmentLog.Entry entry : run) {
+			Material material;
+			try {
+				material = JsonUtils.fromJson(json(entry), clazz);
+
+			} catch (RuntimeException e) {
+				send(deviceId, entries, materials); // the ones before it
+
+				entries = new ArrayList<SegmentLog.Entry>();
+				materials = new ArrayList<Material>();
+				bytes = 0;
+
+				commit(entry);
+				rejected.incrementAndGet();
+
+				LOG.error("Skip the spooled entry which can't be decoded - " + e.getMessage());
+				continue;
+			}
+
+			int length = OpenRESTfulClient.utf8Length(JsonUtils.toJson(material));
+
+			int count = materials.size();
+			if ((count > 0) && ((count >= client.maxBatchSize) || ((bytes + length + 2) > client.maxBatchBytes))) { // one POST of the client
+				send(deviceId, entries, materials);
+
+				entries = new ArrayList<SegmentLog.Entry>();
+				materials = new ArrayList<Material>();
+				bytes = 0;
+			}
+
+			entries.add(entry);
+			materials.add(material);
+			bytes += length + 1;
+		}
+
+		send(deviceId, entries, materials);
+	}
+
+	/**
+	 * POST the materials and commit them. If the server rejects them (4xx which is not retriable), they are split
+	 * in halves and sent again, until only the ones the server refuses are skipped. So is an error, then the one
+	 * which fails is at the head of the spool, to be retried and skipped by process().
+	 */
+	protected void send(String deviceId, List<SegmentLog.Entry> entries, List<Material> materials) throws IOException {
+		int n = materials.size();
+		if (n == 0) {
+			return;
+		}
+
+		try {
+			if (materials.get(0) instanceof Rawdata) {
+				client.saveRawdatas(deviceId, materials.toArray(new Rawdata[n]));
+
+			} else {
+				client.saveRecords(deviceId, materials.toArray(new Record[n]));
+			}
+
+			replayed.addAndGet(n);
+
+		} catch (HttpStatusException e) {
+			if (e.isRetriable()) {
+				throw e;
+			}
+
+			if (n > 1) { // which ones ?
+				split(deviceId, entries, materials);
+
+				return;
+			}
+
+			rejected.incrementAndGet(); // never accepted, skip it
+
+			LOG.error("Server rejects the spooled entry of device " + deviceId + " - " + e.getMessage());
+
+		} catch (RuntimeException e) {
+			if (n > 1) { // which one ?
+				split(deviceId, entries, materials);
+
+				return;
+			}
+
+			throw e;
+		}
+
+		commit(entries.get(n - 1));
+	}
+
+	protected void split(String deviceId, List<SegmentLog.Entry> entries, List<Material> materials) throws IOException {
+		int n = materials.size();
+		int half = n / 2;
+
+		send(deviceId, entries.subList(0, half), materials.subList(0, half));
+		send(deviceId, entries.subList(half, n), materials.subList(half, n));
+	}
+
+	protected void commit(SegmentLog.Entry last) throws IOException {
+		spool.commit(last);
+
+		commits += 1;
+	}
+
+	protected static String deviceId(SegmentLog.Entry entry) {
+		byte[] payload = entry.getPayload();
+		for (int i = 0; i < payload.length; i++) {
+			if (payload[i] == '\n') {
+				return new String(payload, 0, i, UTF8);
+			}
+		}
+
+		return "";
+	}
+
+	protected static String json(SegmentLog.Entry entry) {
+		byte[] payload = entry.getPayload();
+		for (int i = 0; i < payload.length; i++) {
+			if (payload[i] == '\n') {
+				return new String(payload, i + 1, payload.length - i - 1, UTF8);
+			}
+		}
+
+		return new String(payload, UTF8);
+	}
+
+	// ======
+
+	/**
+	 * Number of rawdata and records sent to the server directly.
+	 *
+	 * @return
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * Number of rawdata and records appended to the spool.
+	 *
+	 * @return
+	 */
+	public long getSpooledCount() {
+		return spooled.get();
+	}
+
+	/**
+	 * Number of spooled rawdata and records accepted by the server.
+	 *
+	 * @return
+	 */
+	public long getReplayedCount() {
+		return replayed.get();
+	}
+
+	/**
+	 * Number of spooled rawdata and records rejected (4xx which is not retriable) by the server, or skipped because they
+	 * can't be decoded or keep failing. They are removed from the spool.
+	 *
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Number of rawdata and records lost because the spool is full.
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of rawdata and records waiting in the spool.
+	 *
+	 * @return
+	 */
+	public long getSpoolSize() {
+		return spool.size();
+	}
+
+	/**
+	 * Disk space (in bytes) used by the spool.
+	 *
+	 * @return
+	 */
+	public long getSpoolBytes() {
+		return spool.getPendingBytes();
+	}
+
+	public long getLastReplayLatency() {
+		return lastReplayLatency;
+	}
+
+	/**
+	 * Replayed rawdata and records per second, the waiting between the retries is not counted.
+	 *
+	 * @return
+	 */
+	public double getReplayThroughput() {
+		long time = replayTime.get();
+		return (time == 0L)? 0.0 : (replayed.get() * 1000.0) / time;
+	}
+}
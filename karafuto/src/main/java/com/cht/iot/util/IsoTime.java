@@ -0,0 +1,339 @@
+package com.cht.iot.util;
+
+/**
+ * Format and parse the ISO-8601 timestamp of IoT platform, 'yyyy-MM-dd'T'HH:mm:ss.SSS'Z'' in UTC.
+ *
+ * It's stateless so it's thread-safe without any lock (SimpleDateFormat is not), and it can format into
+ * a reusable buffer. The parser of char[] (e.g. the JSON parser's buffer) doesn't allocate anything, and it is lenient:
+ *
+ * 	2016-01-01
+ * 	2016-01-01T08:00
+ * 	2016-01-01 08:00:00
+ * 	2016-01-01T08:00:00.5Z
+ * 	2016-01-01T08:00:00.123456+08:00
+ */
+public final class IsoTime {
+	public static final int LENGTH = 24; // yyyy-MM-ddTHH:mm:ss.SSSZ
+
+	static final long DAY = 86400000L;
+
+	static final char[] DIGITS = "0123456789".toCharArray();
+
+	private IsoTime() {
+	}
+
+	// ======
+
+	/**
+	 * Format the epoch time.
+	 *
+	 * @param millis
+	 * @return
+	 */
+	public static String format(long millis) {
+		char[] buf = new char[LENGTH];
+		format(millis, buf, 0);
+
+		return new String(buf);
+	}
+
+	/**
+	 * Format the epoch time into the buffer.
+	 *
+	 * @param millis
+	 * @param buf
+	 * @param offset
+	 * @return			the offset after the timestamp, i.e. offset + LENGTH
+	 */
+	public static int format(long millis, char[] buf, int offset) {
+		long f = fields(millis);
+		int ms = (int) (f & 0x7ffffff);
+
+		int i = offset;
+		i = digits(buf, i, (int) (f >>> 36), 4);
+		buf[i++] = '-';
+		i = digits(buf, i, (int) ((f >>> 32) & 0xf), 2);
+		buf[i++] = '-';
+		i = digits(buf, i, (int) ((f >>> 27) & 0x1f), 2);
+		buf[i++] = 'T';
+		i = digits(buf, i, ms / 3600000, 2);
+		buf[i++] = ':';
+		i = digits(buf, i, (ms / 60000) % 60, 2);
+		buf[i++] = ':';
+		i = digits(buf, i, (ms / 1000) % 60, 2);
+		buf[i++] = '.';
+		i = digits(buf, i, ms % 1000, 3);
+		buf[i++] = 'Z';
+
+		return i;
+	}
+
+	/**
+	 * Format the epoch time into the buffer as ASCII bytes, e.g. for the JSON body.
+	 *
+	 * @param millis
+	 * @param buf
+	 * @param offset
+	 * @return			the offset after the timestamp, i.e. offset + LENGTH
+	 */
+	public static int format(long millis, byte[] buf, int offset) {
+		long f = fields(millis);
+		int ms = (int) (f & 0x7ffffff);
+
+		int i = offset;
+		i = digits(buf, i, (int) (f >>> 36), 4);
+		buf[i++] = '-';
+		i = digits(buf, i, (int) ((f >>> 32) & 0xf), 2);
+		buf[i++] = '-';
+		i = digits(buf, i, (int) ((f >>> 27) & 0x1f), 2);
+		buf[i++] = 'T';
+		i = digits(buf, i, ms / 3600000, 2);
+		buf[i++] = ':';
+		i = digits(buf, i, (ms / 60000) % 60, 2);
+		buf[i++] = ':';
+		i = digits(buf, i, (ms / 1000) % 60, 2);
+		buf[i++] = '.';
+		i = digits(buf, i, ms % 1000, 3);
+		buf[i++] = 'Z';
+
+		return i;
+	}
+
+	/**
+	 * The civil date and the time of day from the epoch time, by Howard Hinnant's algorithm.
+	 *
+	 * @return		[year:14][month:4][day:5][millis of day:27]
+	 */
+	static long fields(long millis) {
+		long days = millis / DAY;
+		long ms = millis % DAY;
+		if (ms < 0L) {
+			ms += DAY;
+			days -= 1L;
+		}
+
+		long z = days + 719468L;
+		long era = ((z >= 0L)? z : (z - 146096L)) / 146097L;
+		int doe = (int) (z - (era * 146097L));
+		int yoe = (doe - (doe / 1460) + (doe / 36524) - (doe / 146096)) / 365;
+		int doy = doe - ((365 * yoe) + (yoe / 4) - (yoe / 100));
+		int mp = ((5 * doy) + 2) / 153;
+		long day = doy - (((153 * mp) + 2) / 5) + 1;
+		long month = (mp < 10)? (mp + 3) : (mp - 9);
+		long year = yoe + (era * 400L) + ((month <= 2)? 1 : 0);
+
+		if ((year < 0L) || (year > 9999L)) {
+			throw new IllegalArgumentException("Year is out of range - " + year);
+		}
+
+		return (year << 36) | (month << 32) | (day << 27) | ms;
+	}
+
+	static int digits(char[] buf, int offset, int value, int width) {
+		for (int i = offset + width - 1; i >= offset; i--) {
+			buf[i] = DIGITS[value % 10];
+			value /= 10;
+		}
+
+		return offset + width;
+	}
+
+	static int digits(byte[] buf, int offset, int value, int width) {
+		for (int i = offset + width - 1; i >= offset; i--) {
+			buf[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+
+		return offset + width;
+	}
+
+	// ======
+
+	/**
+	 * Parse the timestamp into the epoch time.
+	 *
+	 * @param s
+	 * @return
+	 * @throws IllegalArgumentException		it's not a timestamp.
+	 */
+	public static long parse(CharSequence s) {
+		int length = s.length();
+		char[] buf = new char[length];
+		for (int i = 0; i < length; i++) {
+			buf[i] = s.charAt(i);
+		}
+
+		return parse(buf, 0, length);
+	}
+
+	/**
+	 * Parse the timestamp in the buffer, e.g. from JsonParser.getTextCharacters(). Nothing is allocated.
+	 *
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IllegalArgumentException		it's not a timestamp.
+	 */
+	public static long parse(char[] buf, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+
+		int year = number(buf, i, 4, offset, end);
+		i = expect(buf, i + 4, '-', offset, end);
+		int month = number(buf, i, 2, offset, end);
+		i = expect(buf, i + 2, '-', offset, end);
+		int day = number(buf, i, 2, offset, end);
+		i += 2;
+
+		if ((month < 1) || (month > 12) || (day < 1) || (day > 31)) {
+			throw invalid(buf, offset, length);
+		}
+
+		long millis = 0L;
+		if ((i < end) && ((buf[i] == 'T') || (buf[i] == 't') || (buf[i] == ' '))) {
+			i += 1;
+
+			int hour = number(buf, i, 2, offset, end);
+			i = expect(buf, i + 2, ':', offset, end);
+			int minute = number(buf, i, 2, offset, end);
+			i += 2;
+
+			int second = 0;
+			if ((i < end) && (buf[i] == ':')) {
+				second = number(buf, i + 1, 2, offset, end);
+				i += 3;
+
+				if ((i < end) && ((buf[i] == '.') || (buf[i] == ','))) {
+					i += 1;
+
+					int ms = 0;
+					int n = 0;
+					while ((i < end) && (buf[i] >= '0') && (buf[i] <= '9')) {
+						if (n < 3) {
+							ms = (ms * 10) + (buf[i] - '0');
+						}
+						n++;
+						i++;
+					}
+
+					if (n == 0) {
+						throw invalid(buf, offset, length);
+					}
+
+					for (; n < 3; n++) {
+						ms *= 10;
+					}
+
+					millis = ms;
+				}
+			}
+
+			if ((hour > 23) || (minute > 59) || (second > 60)) {
+				throw invalid(buf, offset, length);
+			}
+
+			millis += (hour * 3600000L) + (minute * 60000L) + (second * 1000L);
+
+			if (i < end) { // time zone
+				char c = buf[i];
+				if ((c == 'Z') || (c == 'z')) {
+					i += 1;
+
+				} else if ((c == '+') || (c == '-')) {
+					int zh = number(buf, i + 1, 2, offset, end);
+					i += 3;
+
+					int zm = 0;
+					if (i < end) {
+						if (buf[i] == ':') {
+							i += 1;
+						}
+						zm = number(buf, i, 2, offset, end);
+						i += 2;
+					}
+
+					long zone = (zh * 3600000L) + (zm * 60000L);
+					millis -= (c == '+')? zone : -zone;
+				}
+			}
+		}
+
+		if (i != end) {
+			throw invalid(buf, offset, length);
+		}
+
+		return (daysFromCivil(year, month, day) * DAY) + millis;
+	}
+
+	/**
+	 * Check and parse the timestamp.
+	 *
+	 * @param s
+	 * @return			null if it's not a timestamp.
+	 */
+	public static Long tryParse(CharSequence s) {
+		if (s == null) {
+			return null;
+		}
+
+		try {
+			return parse(s);
+
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	static long daysFromCivil(int year, int month, int day) {
+		long y = (month <= 2)? (year - 1) : year;
+		long era = ((y >= 0L)? y : (y - 399L)) / 400L;
+		int yoe = (int) (y - (era * 400L));
+		int doy = ((153 * ((month > 2)? (month - 3) : (month + 9))) + 2) / 5 + day - 1;
+		int doe = (yoe * 365) + (yoe / 4) - (yoe / 100) + doy;
+
+		return (era * 146097L) + doe - 719468L;
+	}
+
+	/**
+	 * @param start		start of the timestamp, for the error message.
+	 */
+	static int number(char[] buf, int offset, int width, int start, int end) {
+		if ((offset + width) > end) {
+			throw invalid(buf, start, end - start);
+		}
+
+		int value = 0;
+		for (int i = offset; i < offset + width; i++) {
+			char c = buf[i];
+			if ((c < '0') || (c > '9')) {
+				throw invalid(buf, start, end - start);
+			}
+
+			value = (value * 10) + (c - '0');
+		}
+
+		return value;
+	}
+
+	static int expect(char[] buf, int offset, char c, int start, int end) {
+		if ((offset >= end) || (buf[offset] != c)) {
+			throw invalid(buf, start, end - start);
+		}
+
+		return offset + 1;
+	}
+
+	// ======
+
+	/**
+	 * Is it exactly what format() gives, e.g. '2016-01-01T00:00:00.000Z'?
+	 */
+	static boolean canonical(char[] buf, int offset, int length) {
+		return (length == LENGTH) && (buf[offset + 10] == 'T') && (buf[offset + LENGTH - 1] == 'Z');
+	}
+
+	static IllegalArgumentException invalid(char[] buf, int offset, int length) {
+		return new IllegalArgumentException("Unknown timestamp - " + new String(buf, offset, length));
+	}
+}
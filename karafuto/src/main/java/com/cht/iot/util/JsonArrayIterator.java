@@ -0,0 +1,79 @@
+package com.cht.iot.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Read the elements of a JSON array one by one, the whole array is never held in memory.
+ *
+ * @param <T>
+ */
+public class JsonArrayIterator<T> implements Iterator<T>, Closeable {
+	final ObjectMapper mapper;
+	final JsonParser parser;
+	final Class<T> clazz;
+
+	JsonToken token;
+
+	public JsonArrayIterator(ObjectMapper mapper, JsonParser parser, Class<T> clazz) {
+		this.mapper = mapper;
+		this.parser = parser;
+		this.clazz = clazz;
+
+		try {
+			JsonToken first = parser.nextToken();
+			if ((first != null) && (first != JsonToken.START_ARRAY)) {
+				throw new OperationException("Expect a JSON array but " + first, null);
+			}
+
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (token == null) {
+			try {
+				token = parser.nextToken();
+
+			} catch (IOException e) {
+				throw new OperationException(e.getMessage(), e);
+			}
+		}
+
+		return (token != null) && (token != JsonToken.END_ARRAY);
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		try {
+			token = null;
+
+			return mapper.readValue(parser, clazz);
+
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		parser.close();
+	}
+}
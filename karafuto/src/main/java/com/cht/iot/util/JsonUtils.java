@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
 
@@ -14,6 +15,15 @@ public class JsonUtils {
 		jackson.setSerializationInclusion(Inclusion.NON_NULL);
 	}
 	
+	/**
+	 * The shared factory of the streaming parsers. It's thread-safe.
+	 * 
+	 * @return
+	 */
+	public static JsonFactory getJsonFactory() {
+		return jackson.getJsonFactory();
+	}
+	
 	public static String toJson(Object obj) {
 		try {
 			return jackson.writeValueAsString(obj);
@@ -41,6 +51,22 @@ public class JsonUtils {
 		}
 	}
 	
+	/**
+	 * Parse the JSON array element by element. You have to close the iterator (it will close the stream).
+	 * 
+	 * @param is
+	 * @param clazz
+	 * @return
+	 */
+	public static <T> JsonArrayIterator<T> iterate(InputStream is, Class<T> clazz) {
+		try {
+			return new JsonArrayIterator<T>(jackson, jackson.getJsonFactory().createJsonParser(is), clazz);
+			
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+	
 	public static <T> T fromJson(String s, Class<T> clazz) {
 		try {
 			return jackson.readValue(s, clazz);
@@ -0,0 +1,330 @@
+package com.cht.iot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.RawdataSeries;
+
+/**
+ * Decode the rawdata JSON from the UTF-8 bytes (e.g. MQTT payload) by the streaming parser.
+ * There is no intermediate String of the whole JSON and no data binding, and the Rawdata can be reused.
+ *
+ * It's not thread-safe, each thread should have its own decoder.
+ */
+public class RawdataDecoder {
+	final JsonFactory factory;
+
+	String[] values = new String[4]; // scratch of the value array
+	double[] numbers = new double[4];
+
+	public RawdataDecoder() {
+		this(new JsonFactory());
+	}
+
+	public RawdataDecoder(JsonFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Decode the rawdata into a new Rawdata.
+	 *
+	 * @param payload
+	 * @return
+	 */
+	public Rawdata decode(byte[] payload) {
+		return decode(payload, 0, payload.length, new Rawdata());
+	}
+
+	/**
+	 * Decode the rawdata into the given Rawdata. All the fields are overwritten, the value array is reused if it has the same length.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @param rawdata
+	 * @return				the given rawdata
+	 */
+	public Rawdata decode(byte[] payload, int offset, int length, Rawdata rawdata) {
+		try {
+			JsonParser jp = factory.createJsonParser(payload, offset, length);
+			try {
+				if (jp.nextToken() != JsonToken.START_OBJECT) {
+					throw new OperationException("Expect a JSON object of rawdata", null);
+				}
+
+				String id = null;
+				String deviceId = null;
+				String time = null;
+				long timestamp = Rawdata.NO_TIME;
+				Float lat = null;
+				Float lon = null;
+				String[] value = null;
+
+				JsonToken token;
+				while ((token = jp.nextToken()) == JsonToken.FIELD_NAME) {
+					String name = jp.getCurrentName(); // interned by the parser
+					token = jp.nextToken();
+
+					if (token == JsonToken.VALUE_NULL) {
+						continue;
+
+					} else if ("id".equals(name)) {
+						id = jp.getText();
+
+					} else if ("value".equals(name)) {
+						value = readValue(jp, token, rawdata.getValue());
+
+					} else if ("time".equals(name)) {
+						char[] buf = jp.getTextCharacters();
+						int off = jp.getTextOffset();
+						int len = jp.getTextLength();
+						try {
+							timestamp = IsoTime.parse(buf, off, len); // no String
+							if (!IsoTime.canonical(buf, off, len)) {
+								time = jp.getText(); // e.g. '+08:00', give back what was sent
+							}
+						} catch (IllegalArgumentException e) {
+							time = jp.getText(); // keep it as it is
+						}
+
+					} else if ("deviceId".equals(name)) {
+						deviceId = jp.getText();
+
+					} else if ("lat".equals(name)) {
+						lat = jp.getFloatValue();
+
+					} else if ("lon".equals(name)) {
+						lon = jp.getFloatValue();
+
+					} else {
+						jp.skipChildren(); // unknown field
+					}
+				}
+
+				rawdata.setId(id);
+				rawdata.setDeviceId(deviceId);
+				if (time != null) {
+					rawdata.setTime(time);
+
+				} else {
+					rawdata.setTimestamp(timestamp);
+				}
+				rawdata.setLat(lat);
+				rawdata.setLon(lon);
+				rawdata.setValue(value);
+
+				return rawdata;
+
+			} finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Decode the JSON array of the rawdata into the series. The rawdata objects are never created, the times and
+	 * the numbers are parsed from the parser's buffer. The stream is not closed.
+	 *
+	 * @param is
+	 * @param series
+	 * @return				number of the rawdata
+	 */
+	public int decode(InputStream is, RawdataSeries series) {
+		try {
+			JsonParser jp = factory.createJsonParser(is);
+			try {
+				JsonToken token = jp.nextToken();
+				if (token == null) {
+					return 0; // no body
+				}
+
+				if (token != JsonToken.START_ARRAY) {
+					throw new OperationException("Expect a JSON array of rawdata but " + token, null);
+				}
+
+				int count = 0;
+				while ((token = jp.nextToken()) == JsonToken.START_OBJECT) {
+					long time = Rawdata.NO_TIME;
+					int n = 0;
+					float lat = Float.NaN;
+					float lon = Float.NaN;
+
+					while ((token = jp.nextToken()) == JsonToken.FIELD_NAME) {
+						String name = jp.getCurrentName();
+						token = jp.nextToken();
+
+						if (token == JsonToken.VALUE_NULL) {
+							continue;
+
+						} else if ("value".equals(name)) {
+							n = readNumbers(jp, token);
+
+						} else if ("time".equals(name)) {
+							try {
+								time = IsoTime.parse(jp.getTextCharacters(), jp.getTextOffset(), jp.getTextLength());
+
+							} catch (IllegalArgumentException e) {
+								// not a timestamp
+							}
+						} else if ("lat".equals(name)) {
+							lat = jp.getFloatValue();
+
+						} else if ("lon".equals(name)) {
+							lon = jp.getFloatValue();
+
+						} else {
+							jp.skipChildren(); // id, deviceId or unknown
+						}
+					}
+
+					series.add(time, numbers, n, lat, lon);
+					count++;
+				}
+
+				if (token != JsonToken.END_ARRAY) {
+					throw new OperationException("Unexpected " + token + " in the array of rawdata", null);
+				}
+
+				return count;
+
+			} finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+
+	protected int readNumbers(JsonParser jp, JsonToken token) throws IOException {
+		if (token != JsonToken.START_ARRAY) {
+			numbers[0] = toNumber(jp, token); // single value
+			return 1;
+		}
+
+		int n = 0;
+		while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) {
+				throw new OperationException("Unexpected end of the value array", null);
+			}
+
+			if (n == numbers.length) {
+				double[] grown = new double[n * 2];
+				System.arraycopy(numbers, 0, grown, 0, n);
+				numbers = grown;
+			}
+
+			numbers[n++] = toNumber(jp, token);
+		}
+
+		return n;
+	}
+
+	protected static double toNumber(JsonParser jp, JsonToken token) throws IOException {
+		if ((token == JsonToken.VALUE_NUMBER_INT) || (token == JsonToken.VALUE_NUMBER_FLOAT)) {
+			return jp.getDoubleValue();
+
+		} else if (token == JsonToken.VALUE_STRING) {
+			return parseDouble(jp.getTextCharacters(), jp.getTextOffset(), jp.getTextLength());
+
+		} else if ((token == JsonToken.START_ARRAY) || (token == JsonToken.START_OBJECT)) {
+			jp.skipChildren();
+		}
+
+		return Double.NaN;
+	}
+
+	static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * Parse the decimal without creating the String. The plain decimals with up to 15 digits are parsed exactly
+	 * (both the digits and the power of 10 are exact doubles, the division is correctly rounded), the others by Double.parseDouble().
+	 *
+	 * @return			NaN if it's not a number.
+	 */
+	static double parseDouble(char[] buf, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+
+		boolean negative = false;
+		if ((i < end) && ((buf[i] == '-') || (buf[i] == '+'))) {
+			negative = (buf[i] == '-');
+			i++;
+		}
+
+		long mantissa = 0L;
+		int digits = 0;
+		int scale = -1; // digits after the point
+		for (; i < end; i++) {
+			char c = buf[i];
+			if ((c >= '0') && (c <= '9')) {
+				mantissa = (mantissa * 10L) + (c - '0');
+				digits++;
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if ((c == '.') && (scale < 0)) {
+				scale = 0;
+
+			} else {
+				break;
+			}
+		}
+
+		if ((i == end) && (digits > 0) && (digits <= 15) && (scale < POWERS.length)) {
+			double d = (scale > 0)? (mantissa / POWERS[scale]) : mantissa;
+			return negative? -d : d;
+		}
+
+		try {
+			return Double.parseDouble(new String(buf, offset, length)); // exponent, long or not a number
+
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	protected String[] readValue(JsonParser jp, JsonToken token, String[] reusable) throws IOException {
+		if (token != JsonToken.START_ARRAY) {
+			return new String[] { jp.getText() }; // single value
+		}
+
+		int n = 0;
+		while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) {
+				throw new OperationException("Unexpected end of the value array", null);
+			}
+
+			if (n == values.length) {
+				String[] grown = new String[n * 2];
+				System.arraycopy(values, 0, grown, 0, n);
+				values = grown;
+			}
+
+			if (token == JsonToken.VALUE_NULL) {
+				values[n++] = null;
+
+			} else if ((token == JsonToken.START_ARRAY) || (token == JsonToken.START_OBJECT)) {
+				values[n++] = null; // not a value
+				jp.skipChildren();
+
+			} else {
+				values[n++] = jp.getText();
+			}
+		}
+
+		String[] value = ((reusable != null) && (reusable.length == n))? reusable : new String[n];
+		System.arraycopy(values, 0, value, 0, n);
+		for (int i = 0; i < n; i++) {
+			values[i] = null; // don't hold the strings
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,176 @@
+package com.cht.iot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.persistence.entity.data.RecordBatch;
+
+/**
+ * Decode the JSON array of the records into a RecordBatch by the streaming parser. There is no Record and no Map,
+ * the numbers and the times are parsed from the parser's buffer by the column types.
+ *
+ * It's not thread-safe, each thread should have its own decoder.
+ */
+public class RecordDecoder {
+	final JsonFactory factory;
+
+	public RecordDecoder() {
+		this(new JsonFactory());
+	}
+
+	public RecordDecoder(JsonFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Decode the records into the batch. The columns which the sheet doesn't have are skipped. The stream is not closed.
+	 *
+	 * @param is
+	 * @param batch
+	 * @return			number of the records
+	 */
+	public int decode(InputStream is, RecordBatch batch) {
+		try {
+			JsonParser jp = factory.createJsonParser(is);
+			try {
+				JsonToken token = jp.nextToken();
+				if (token == null) {
+					return 0; // no body
+				}
+
+				if (token != JsonToken.START_ARRAY) {
+					throw new OperationException("Expect a JSON array of records but " + token, null);
+				}
+
+				int count = 0;
+				while ((token = jp.nextToken()) == JsonToken.START_OBJECT) {
+					int row = batch.add(Record.NO_TIME);
+
+					while ((token = jp.nextToken()) == JsonToken.FIELD_NAME) {
+						String name = jp.getCurrentName();
+						token = jp.nextToken();
+
+						if (token == JsonToken.VALUE_NULL) {
+							continue;
+
+						} else if ("time".equals(name)) {
+							try {
+								batch.setTime(row, IsoTime.parse(jp.getTextCharacters(), jp.getTextOffset(), jp.getTextLength()));
+
+							} catch (IllegalArgumentException e) {
+								// not a timestamp
+							}
+						} else if (("value".equals(name)) && (token == JsonToken.START_OBJECT)) {
+							readValue(jp, batch, row);
+
+						} else {
+							jp.skipChildren(); // id or unknown
+						}
+					}
+
+					count++;
+				}
+
+				if (token != JsonToken.END_ARRAY) {
+					throw new OperationException("Unexpected " + token + " in the array of records", null);
+				}
+
+				return count;
+
+			} finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new OperationException(e.getMessage(), e);
+		}
+	}
+
+	protected void readValue(JsonParser jp, RecordBatch batch, int row) throws IOException {
+		JsonToken token;
+		while ((token = jp.nextToken()) == JsonToken.FIELD_NAME) {
+			int column = batch.indexOf(jp.getCurrentName());
+			token = jp.nextToken();
+
+			if ((column < 0) || (token == JsonToken.VALUE_NULL)) {
+				jp.skipChildren();
+				continue;
+			}
+
+			RecordBatch.Type type = batch.getColumnType(column);
+			if (token == JsonToken.VALUE_STRING) {
+				char[] buf = jp.getTextCharacters();
+				int offset = jp.getTextOffset();
+				int length = jp.getTextLength();
+
+				try {
+					if (type == RecordBatch.Type.Integer) {
+						batch.setLong(row, column, parseLong(buf, offset, length));
+						continue;
+
+					} else if (type == RecordBatch.Type.Float) {
+						double d = RawdataDecoder.parseDouble(buf, offset, length);
+						if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+							batch.setDouble(row, column, d);
+							continue;
+						}
+					} else if (type == RecordBatch.Type.Datetime) {
+						batch.setLong(row, column, IsoTime.parse(buf, offset, length));
+						continue;
+					}
+				} catch (IllegalArgumentException e) { // NumberFormatException too
+				}
+
+				batch.setString(row, column, jp.getText()); // text or kept as it is
+
+			} else if ((token == JsonToken.VALUE_NUMBER_INT) && (type != RecordBatch.Type.Text)) {
+				batch.setLong(row, column, jp.getLongValue());
+
+			} else if ((token == JsonToken.VALUE_NUMBER_FLOAT) && (type == RecordBatch.Type.Float)) {
+				batch.setDouble(row, column, jp.getDoubleValue());
+
+			} else if ((token == JsonToken.START_ARRAY) || (token == JsonToken.START_OBJECT)) {
+				jp.skipChildren(); // not a cell
+
+			} else {
+				batch.setString(row, column, jp.getText());
+			}
+		}
+	}
+
+	/**
+	 * Parse the integer without creating the String.
+	 *
+	 * @throws NumberFormatException
+	 */
+	static long parseLong(char[] buf, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+
+		boolean negative = false;
+		if ((i < end) && ((buf[i] == '-') || (buf[i] == '+'))) {
+			negative = (buf[i] == '-');
+			i++;
+		}
+
+		if ((i == end) || ((end - i) > 18)) {
+			return Long.parseLong(new String(buf, offset, length)); // empty or maybe overflow, let it tell
+		}
+
+		long value = 0L;
+		for (; i < end; i++) {
+			char c = buf[i];
+			if ((c < '0') || (c > '9')) {
+				throw new NumberFormatException("Not an integer");
+			}
+
+			value = (value * 10L) + (c - '0');
+		}
+
+		return negative? -value : value;
+	}
+}
@@ -0,0 +1,429 @@
+package com.cht.iot.util;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log on disk. The log is split into fixed size segment files and each segment is memory-mapped.
+ *
+ * Each entry is [length:4][crc32:4][type:1][payload]. The reader position is saved in the 'offset' file
+ * (replaced atomically) when the entries are committed, and the segments which are fully consumed are deleted.
+ * After a crash, the log is scanned from the saved offset and ends at the first broken entry.
+ *
+ * The disk usage is bounded by segmentSize * maxSegments, append() returns false when the log is full.
+ */
+public class SegmentLog implements Closeable {
+	static final int HEADER = 9;
+	static final String SUFFIX = ".seg";
+	static final String OFFSET = "offset";
+
+	final File dir;
+	final int segmentSize;
+	final int maxSegments;
+
+	boolean sync = false;
+
+	final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+
+	long readIndex;
+	int readPosition;
+	long writeIndex;
+	int writePosition;
+
+	long consumed;	// entries committed since opened
+	long count;		// entries not yet committed
+
+	/**
+	 * Open (or create) the log in the directory.
+	 *
+	 * @param dir
+	 * @param segmentSize		bytes of one segment file, an entry can't be larger than it.
+	 * @param maxSegments		max segment files on disk, at least 2 - the writer can't roll into the segment being read.
+	 * @throws IOException
+	 */
+	public SegmentLog(File dir, int segmentSize, int maxSegments) throws IOException {
+		if ((segmentSize <= HEADER) || (maxSegments < 2)) {
+			throw new IllegalArgumentException("Segment size or max segments is too small");
+		}
+
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create the directory - " + dir);
+		}
+
+		recover();
+	}
+
+	/**
+	 * Force the entry onto the disk after each append(). It survives the power loss but it's much slower.
+	 * The entries always survive the process crash because they are in the page cache.
+	 *
+	 * @param sync
+	 */
+	public synchronized void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	protected File getSegmentFile(long index) {
+		return new File(dir, String.format("%016d%s", index, SUFFIX));
+	}
+
+	protected MappedByteBuffer map(long index, boolean truncate) throws IOException {
+		MappedByteBuffer mbb = segments.get(index);
+		if (mbb == null) {
+			RandomAccessFile raf = new RandomAccessFile(getSegmentFile(index), "rw");
+			try {
+				if (truncate) {
+					raf.setLength(0L); // drop the garbage of the last crash
+				}
+				raf.setLength(segmentSize);
+
+				mbb = raf.getChannel().map(MapMode.READ_WRITE, 0L, segmentSize); // still valid after the file is closed
+
+			} finally {
+				raf.close();
+			}
+
+			segments.put(index, mbb);
+		}
+
+		return mbb;
+	}
+
+	protected static int crc(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Check the entry at the position.
+	 *
+	 * @return		payload length or -1 if there is no valid entry.
+	 */
+	protected int check(MappedByteBuffer mbb, int position) {
+		if ((position + HEADER) > segmentSize) {
+			return -1;
+		}
+
+		int length = mbb.getInt(position);
+		byte type = mbb.get(position + 8);
+		if ((type == 0) || (length < 0) || (length > (segmentSize - position - HEADER))) {
+			return -1;
+		}
+
+		byte[] payload = new byte[length];
+		ByteBuffer bb = mbb.duplicate();
+		bb.position(position + HEADER);
+		bb.get(payload);
+
+		return (crc(type, payload) == mbb.getInt(position + 4))? length : -1;
+	}
+
+	protected void recover() throws IOException {
+		List<Long> indexes = new ArrayList<Long>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SUFFIX)) {
+					try {
+						indexes.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+
+					} catch (NumberFormatException e) {
+						// not ours
+					}
+				}
+			}
+		}
+
+		long first = indexes.isEmpty()? 0L : Collections.min(indexes);
+		long last = indexes.isEmpty()? 0L : Collections.max(indexes);
+
+		readIndex = first;
+		readPosition = 0;
+
+		File offset = new File(dir, OFFSET);
+		if (offset.exists()) {
+			DataInputStream dis = new DataInputStream(new FileInputStream(offset));
+			try {
+				long index = dis.readLong();
+				int position = dis.readInt();
+				int crc = dis.readInt();
+
+				if ((crc == (int) (index ^ (index >>> 32) ^ position)) && (index >= first) && (index <= last)) {
+					readIndex = index;
+					readPosition = position;
+				}
+			} catch (IOException e) {
+				// broken offset file, read from the oldest segment
+
+			} finally {
+				dis.close();
+			}
+		}
+
+		for (Long index : indexes) {
+			if (index < readIndex) {
+				getSegmentFile(index).delete();
+			}
+		}
+
+		// scan to find the end of the log
+
+		long index = readIndex;
+		int position = readPosition;
+		for (;;) {
+			MappedByteBuffer mbb = map(index, false);
+
+			int length;
+			while ((length = check(mbb, position)) >= 0) {
+				position += HEADER + length;
+				count += 1;
+			}
+
+			if (index >= last) {
+				break;
+			}
+
+			index += 1;
+			position = 0;
+		}
+
+		writeIndex = index;
+		writePosition = position;
+	}
+
+	protected void saveOffset() throws IOException {
+		File tmp = new File(dir, OFFSET + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			ByteBuffer bb = ByteBuffer.allocate(16);
+			bb.putLong(readIndex);
+			bb.putInt(readPosition);
+			bb.putInt((int) (readIndex ^ (readIndex >>> 32) ^ readPosition));
+
+			fos.write(bb.array());
+			fos.getFD().sync();
+
+		} finally {
+			fos.close();
+		}
+
+		Files.move(tmp.toPath(), new File(dir, OFFSET).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// ======
+
+	/**
+	 * Append an entry at the end of the log.
+	 *
+	 * @param type			non-zero, user defined.
+	 * @param payload
+	 * @return				false if the log is full.
+	 * @throws IOException
+	 */
+	public synchronized boolean append(byte type, byte[] payload) throws IOException {
+		if (type == 0) {
+			throw new IllegalArgumentException("Type 0 is reserved");
+		}
+
+		int size = HEADER + payload.length;
+		if (size > segmentSize) {
+			throw new IllegalArgumentException("The entry is larger than the segment - " + size);
+		}
+
+		MappedByteBuffer mbb = map(writeIndex, false);
+
+		if ((writePosition + size) > segmentSize) { // roll to the next segment
+			if ((writeIndex - readIndex + 1) >= maxSegments) {
+				return false;
+			}
+
+			writeIndex += 1;
+			writePosition = 0;
+
+			mbb = map(writeIndex, true);
+		}
+
+		ByteBuffer bb = mbb.duplicate();
+		bb.position(writePosition);
+		bb.putInt(payload.length);
+		bb.putInt(crc(type, payload));
+		bb.put(type);
+		bb.put(payload);
+
+		if ((writePosition + size + HEADER) <= segmentSize) {
+			mbb.put(writePosition + size + 8, (byte) 0); // the end of the log
+		}
+
+		writePosition += size;
+		count += 1;
+
+		if (sync) {
+			mbb.force();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read the entries from the head of the log. They are kept in the log until you commit them.
+	 *
+	 * @param max
+	 * @return
+	 */
+	public synchronized List<Entry> read(int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+
+		long index = readIndex;
+		int position = readPosition;
+		while (entries.size() < max) {
+			if ((index == writeIndex) && (position >= writePosition)) {
+				break;
+			}
+
+			MappedByteBuffer mbb = map(index, false);
+
+			int length = check(mbb, position);
+			if (length < 0) { // end of the segment
+				if (index >= writeIndex) {
+					break;
+				}
+
+				index += 1;
+				position = 0;
+				continue;
+			}
+
+			byte[] payload = new byte[length];
+			ByteBuffer bb = mbb.duplicate();
+			bb.position(position + HEADER);
+			bb.get(payload);
+
+			byte type = mbb.get(position + 8);
+
+			position += HEADER + length;
+
+			entries.add(new Entry(type, payload, index, position, consumed + entries.size() + 1));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Remove the entries up to (and including) the given one from the log.
+	 *
+	 * @param last
+	 * @throws IOException
+	 */
+	public synchronized void commit(Entry last) throws IOException {
+		if (last.ordinal <= consumed) {
+			return; // already
+		}
+
+		count -= (last.ordinal - consumed);
+		consumed = last.ordinal;
+
+		readIndex = last.index;
+		readPosition = last.position;
+
+		saveOffset();
+
+		Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.headMap(readIndex).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, MappedByteBuffer> e = it.next();
+			it.remove();
+
+			getSegmentFile(e.getKey()).delete(); // unmapped by GC
+		}
+	}
+
+	/**
+	 * Number of the entries not yet committed.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return count;
+	}
+
+	public synchronized boolean isEmpty() {
+		return count == 0L;
+	}
+
+	/**
+	 * Disk space (in bytes) used by the entries not yet committed.
+	 *
+	 * @return
+	 */
+	public synchronized long getPendingBytes() {
+		return ((writeIndex - readIndex) * segmentSize) + writePosition - readPosition;
+	}
+
+	/**
+	 * Force the entries onto the disk.
+	 */
+	public synchronized void flush() {
+		for (MappedByteBuffer mbb : segments.values()) {
+			mbb.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		saveOffset();
+
+		segments.clear();
+	}
+
+	// ======
+
+	public static class Entry {
+		final byte type;
+		final byte[] payload;
+
+		final long index;	// where the next entry is
+		final int position;
+		final long ordinal;
+
+		Entry(byte type, byte[] payload, long index, int position, long ordinal) {
+			this.type = type;
+			this.payload = payload;
+			this.index = index;
+			this.position = position;
+			this.ordinal = ordinal;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+}
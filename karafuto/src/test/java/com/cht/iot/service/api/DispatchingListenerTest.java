@@ -0,0 +1,117 @@
+package com.cht.iot.service.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+
+public class DispatchingListenerTest {
+
+	final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@After
+	public void after() throws Exception {
+		executor.shutdownNow();
+	}
+
+	protected Rawdata newRawdata(int i) {
+		Rawdata rawdata = new Rawdata();
+		rawdata.setValue(new String[] { Integer.toString(i) });
+
+		return rawdata;
+	}
+
+	@Test
+	public void testOrderPerTopic() throws Exception {
+		final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+		final CountDownLatch latch = new CountDownLatch(8 * 1000);
+
+		DispatchingListener dl = new DispatchingListener(new OpenMqttClient.ListenerAdapter() {
+			@Override
+			public void onRawdata(String topic, Rawdata rawdata) {
+				List<Integer> values;
+				synchronized (received) {
+					values = received.get(topic);
+					if (values == null) {
+						values = Collections.synchronizedList(new ArrayList<Integer>());
+						received.put(topic, values);
+					}
+				}
+				values.add(Integer.parseInt(rawdata.getValue()[0]));
+
+				latch.countDown();
+			}
+		}, executor, 4, 8000); // room for all, two topics may share a stripe
+
+		for (int i = 0; i < 1000; i++) {
+			for (int s = 0; s < 8; s++) {
+				dl.onRawdata("/v1/device/25/sensor/sensor-" + s + "/rawdata", newRawdata(i));
+			}
+		}
+
+		Assert.assertTrue(latch.await(5L, TimeUnit.SECONDS));
+		Assert.assertEquals(8, received.size());
+		for (List<Integer> values : received.values()) {
+			for (int i = 0; i < 1000; i++) {
+				Assert.assertEquals(i, values.get(i).intValue());
+			}
+		}
+		long deadline = System.currentTimeMillis() + 5000L; // counted after the listener returns
+		while ((dl.getDispatchedCount() < 8000) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(1L);
+		}
+		Assert.assertEquals(8000, dl.getDispatchedCount());
+		Assert.assertEquals(0, dl.getDroppedCount());
+	}
+
+	@Test
+	public void testSlowListener() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+
+		DispatchingListener dl = new DispatchingListener(new OpenMqttClient.ListenerAdapter() {
+			@Override
+			public void onRawdata(String topic, Rawdata rawdata) {
+				try {
+					release.await(); // e.g. taking a picture
+
+				} catch (InterruptedException e) {
+				}
+			}
+		}, executor, 1, 10);
+
+		dl.onRawdata("/v1/device/25/sensor/shutter/rawdata", newRawdata(0));
+		while (dl.getQueueDepth() > 0) { // it's running
+			Thread.sleep(1L);
+		}
+
+		long ctm = System.currentTimeMillis();
+		for (int i = 1; i < 20; i++) {
+			dl.onRawdata("/v1/device/25/sensor/shutter/rawdata", newRawdata(i));
+		}
+		Assert.assertTrue((System.currentTimeMillis() - ctm) < 1000L); // the MQTT thread is never blocked
+
+		Assert.assertEquals(9, dl.getDroppedCount()); // 1 is running, 10 are waiting
+		Assert.assertEquals(10, dl.getQueueDepth());
+
+		Thread.sleep(50L);
+		release.countDown();
+
+		long deadline = System.currentTimeMillis() + 5000L;
+		while ((dl.getDispatchedCount() < 11) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(11, dl.getDispatchedCount());
+		Assert.assertTrue(dl.getMaxLag() >= 50L);
+	}
+}
@@ -0,0 +1,183 @@
+package com.cht.iot.service.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class OpenAsyncRESTfulClientTest {
+	HttpServer server;
+	final List<String> uploads = new ArrayList<String>();
+	OpenAsyncRESTfulClient client;
+
+	@Before
+	public void before() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/iot/v1/device/25/sensor/sensor-0/rawdata", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = "{\"id\":\"sensor-0\",\"deviceId\":\"25\",\"value\":[\"1\"]}".getBytes("UTF-8");
+				int sc = "H5T40KG55AWAA9U4".equals(exchange.getRequestHeaders().getFirst("CK"))? 200 : 401;
+
+				exchange.sendResponseHeaders(sc, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.createContext("/iot/v1/device/25/snapshot", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				uploads.add(exchange.getRequestHeaders().getFirst("Transfer-Encoding") + "," + IOUtils.toString(exchange.getRequestBody(), "UTF-8"));
+
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool()); // a slow upload doesn't hold up the others
+		server.start();
+
+		client = new OpenAsyncRESTfulClient("127.0.0.1", server.getAddress().getPort(), "H5T40KG55AWAA9U4");
+	}
+
+	@After
+	public void after() throws IOException {
+		client.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void testInFlight() throws Exception {
+		List<Future<Rawdata>> futures = new ArrayList<Future<Rawdata>>();
+		for (int i = 0; i < 50; i++) {
+			futures.add(client.getRawdata("25", "sensor-0", null)); // all in flight
+		}
+
+		for (Future<Rawdata> future : futures) {
+			Assert.assertEquals("1", future.get().getValue()[0]);
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		final List<String> threads = new ArrayList<String>();
+		final CountDownLatch called = new CountDownLatch(1);
+		client.saveSnapshot("25", "camera", null, null, null, new String[0], "shot.png", "image/png", new ByteArrayInputStream("PNG-BODY".getBytes("UTF-8")), new FutureCallback<Void>() {
+			@Override
+			public void completed(Void result) {
+				threads.add(Thread.currentThread().getName());
+				called.countDown();
+			}
+
+			@Override
+			public void failed(Exception e) {
+			}
+
+			@Override
+			public void cancelled() {
+			}
+		}).get();
+		Assert.assertTrue(called.await(5L, TimeUnit.SECONDS));
+
+		Assert.assertEquals(1, uploads.size());
+		Assert.assertTrue(uploads.get(0).startsWith("chunked,")); // not buffered
+		Assert.assertTrue(uploads.get(0).contains("filename=\"shot.png\""));
+		Assert.assertTrue(uploads.get(0).contains("\r\n\r\nPNG-BODY\r\n--"));
+
+		Assert.assertTrue(threads.get(0).startsWith("OpenAsyncRESTfulClient-")); // not the I/O reactor
+	}
+
+	@Test
+	public void testSlowSnapshot() throws Exception {
+		final CountDownLatch more = new CountDownLatch(1);
+		InputStream slow = new InputStream() { // e.g. a camera pipe
+			int n = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (n == 0) {
+					try {
+						more.await();
+
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+
+				return (n++ < 4)? 'P' : -1;
+			}
+		};
+
+		Future<Void> upload = client.saveSnapshot("25", "camera", null, null, null, new String[0], "shot.png", "image/png", slow, null);
+
+		Assert.assertEquals("1", client.getRawdata("25", "sensor-0", null).get(5L, TimeUnit.SECONDS).getValue()[0]); // not stalled
+		Assert.assertFalse(upload.isDone());
+
+		more.countDown();
+		upload.get(5L, TimeUnit.SECONDS);
+
+		Assert.assertTrue(uploads.get(0).contains("\r\n\r\nPPPP\r\n--"));
+	}
+
+	@Test
+	public void testBadImageType() throws Exception {
+		for (String type : new String[] { null, "image/png;" }) {
+			Future<Void> upload = client.saveSnapshot("25", "camera", null, null, null, new String[0], "shot.png", type, new ByteArrayInputStream(new byte[1]), null);
+			try {
+				upload.get();
+				Assert.fail();
+
+			} catch (ExecutionException e) { // not thrown to the caller
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+
+	@Test
+	public void testStatus() throws Exception {
+		OpenAsyncRESTfulClient unauthorized = new OpenAsyncRESTfulClient("127.0.0.1", server.getAddress().getPort(), "WRONG");
+		try {
+			unauthorized.getRawdata("25", "sensor-0", null).get();
+			Assert.fail();
+
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof HttpStatusException);
+			Assert.assertEquals(401, ((HttpStatusException) e.getCause()).getStatusCode());
+			Assert.assertTrue(e.getCause().getMessage().startsWith("[401]"));
+
+		} finally {
+			unauthorized.close();
+		}
+	}
+
+	@Test
+	public void testMissingStart() throws Exception {
+		try {
+			client.getRawdatas("25", "sensor-0", null, null, null, null).get();
+			Assert.fail();
+
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+}
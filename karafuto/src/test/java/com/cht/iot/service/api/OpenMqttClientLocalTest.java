@@ -0,0 +1,400 @@
+package com.cht.iot.service.api;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.SegmentLog;
+
+public class OpenMqttClientLocalTest {
+
+	final List<String> publishedTopics = new ArrayList<String>();
+	final List<String> payloads = new ArrayList<String>();
+	final List<Integer> publishedQoses = new ArrayList<Integer>();
+
+	final List<String> subscriptions = new ArrayList<String>(); // '+' or '-' with the topics of each SUBSCRIBE (UNSUBSCRIBE)
+
+	int failures = 0; // publish() fails N times
+	int nacks = 0; // the acknowledgements fail N times
+
+	final OpenMqttClient client = new OpenMqttClient("localhost", 1883, "apikey") {
+		@Override
+		protected void publish(MqttClient client, String topic, byte[] payload, int qos, IMqttActionListener listener) throws MqttException {
+			if (failures > 0) {
+				failures -= 1;
+				throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+			}
+
+			publishedTopics.add(topic);
+			payloads.add(new String(payload));
+			publishedQoses.add(qos);
+
+			if (nacks > 0) {
+				nacks -= 1;
+				listener.onFailure(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+
+			} else {
+				listener.onSuccess(null);
+			}
+		}
+
+		@Override
+		protected void doSubscribe(MqttClient client, String[] topicFilters) throws MqttException {
+			subscriptions.add("+" + Arrays.asList(topicFilters));
+		}
+
+		@Override
+		protected void doUnsubscribe(MqttClient client, String[] topicFilters) throws MqttException {
+			subscriptions.add("-" + Arrays.asList(topicFilters));
+		}
+	};
+
+	protected List<OpenMqttClient.Action> drain() {
+		List<OpenMqttClient.Action> batch = new ArrayList<OpenMqttClient.Action>();
+		client.actions.drainTo(batch);
+
+		return batch;
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		client.setMaxBatchSize(4);
+
+		for (int i = 0; i < 10; i++) {
+			client.save((i < 7)? "25" : "26", "sensor-0", new String[] { Integer.toString(i) });
+		}
+
+		client.doActions(null, drain());
+
+		Assert.assertEquals(3, payloads.size()); // [0..3], [4..6], [7..9]
+		Assert.assertEquals("/v1/device/25/rawdata", publishedTopics.get(0));
+		Assert.assertEquals("/v1/device/26/rawdata", publishedTopics.get(2));
+
+		Rawdata[] rawdatas = JsonUtils.fromJson(payloads.get(0), Rawdata[].class);
+		Assert.assertEquals(4, rawdatas.length);
+		Assert.assertEquals("0", rawdatas[0].getValue()[0]);
+		Assert.assertEquals("3", rawdatas[3].getValue()[0]);
+		Assert.assertEquals("6", JsonUtils.fromJson(payloads.get(1), Rawdata[].class)[2].getValue()[0]);
+		Assert.assertEquals(3, JsonUtils.fromJson(payloads.get(2), Rawdata[].class).length);
+	}
+
+	@Test
+	public void testQosAndCallback() throws Exception {
+		client.setQos("25", "temperature", OpenMqttClient.QOS_NO_CONFIRMATION);
+
+		final List<String> delivered = new ArrayList<String>();
+		OpenMqttClient.DeliveryCallback callback = new OpenMqttClient.DeliveryCallbackAdapter() {
+			@Override
+			public void onDelivered(String topic, Rawdata rawdata) {
+				delivered.add(rawdata.getValue()[0]);
+			}
+		};
+
+		client.save("25", "temperature", new String[] { "0" });
+		client.save("25", "alarm", new String[] { "1" }, OpenMqttClient.QOS_2, callback);
+		client.save("25", "temperature", new String[] { "2" });
+
+		nacks = 1; // the first PUBLISH is not acknowledged
+		try {
+			client.doActions(null, drain());
+			Assert.fail("Publish should fail");
+
+		} catch (MqttException e) {
+		}
+		Assert.assertEquals(3, client.getOutboxSize());
+		Assert.assertTrue(delivered.isEmpty());
+
+		client.doSubscribe(null); // reconnected
+		client.doActions(null, drain());
+
+		Assert.assertEquals(0, client.getOutboxSize());
+		Assert.assertEquals(3, client.getDeliveredCount());
+		Assert.assertEquals(Arrays.asList("1"), delivered);
+
+		Assert.assertEquals(Arrays.asList(0, 0, 2, 0), publishedQoses); // [0] is failed and the others are not sent, then all in order
+		Assert.assertEquals("0", JsonUtils.fromJson(payloads.get(1), Rawdata[].class)[0].getValue()[0]);
+		Assert.assertEquals("1", JsonUtils.fromJson(payloads.get(2), Rawdata[].class)[0].getValue()[0]);
+		Assert.assertEquals("2", JsonUtils.fromJson(payloads.get(3), Rawdata[].class)[0].getValue()[0]);
+	}
+
+	@Test
+	public void testOutboxSurvivesReconnect() throws Exception {
+		client.setMaxBatchSize(4);
+
+		for (int i = 0; i < 6; i++) {
+			client.save("25", "sensor-0", new String[] { Integer.toString(i) });
+		}
+		Assert.assertEquals(1, client.actions.size()); // only one flush is queued
+
+		failures = 1; // the connection is lost
+		try {
+			client.doActions(null, drain());
+			Assert.fail("Publish should fail");
+
+		} catch (MqttException e) {
+		}
+		Assert.assertEquals(6, client.getOutboxSize());
+
+		client.subscribe("25", "lamp");
+		client.doSubscribe(null); // reconnected
+
+		List<OpenMqttClient.Action> batch = drain();
+		Assert.assertEquals(OpenMqttClient.Action.Method.subscribe, batch.get(0).method); // subscriptions go first
+		Assert.assertEquals(OpenMqttClient.Action.Method.flush, batch.get(1).method);
+
+		client.doActions(null, batch);
+
+		Assert.assertEquals(0, client.getOutboxSize());
+		Assert.assertEquals(2, payloads.size());
+		Assert.assertEquals("0", JsonUtils.fromJson(payloads.get(0), Rawdata[].class)[0].getValue()[0]);
+		Assert.assertEquals("5", JsonUtils.fromJson(payloads.get(1), Rawdata[].class)[1].getValue()[0]);
+	}
+
+	@Test
+	public void testOutboxOnDisk() throws Exception {
+		File dir = Files.createTempDirectory("outbox").toFile();
+		try {
+			client.setOutbox(new Outbox.OnDisk(new SegmentLog(dir, 4096, 4)));
+			client.save("25", "sensor-0", new String[] { "0" });
+			client.save("26", "sensor-0", new String[] { "1" });
+			client.outbox.close(); // the process is ended
+
+			client.setOutbox(new Outbox.OnDisk(new SegmentLog(dir, 4096, 4)));
+			Assert.assertEquals(2, client.getOutboxSize());
+
+			client.doActions(null, drain());
+			Assert.assertEquals(0, client.getOutboxSize());
+			Assert.assertEquals("/v1/device/26/rawdata", publishedTopics.get(1));
+
+			client.outbox.close();
+
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		client.setOutbox(new Outbox.InMemory(3));
+		client.setOverflow(Outbox.Overflow.DropOldest);
+		client.setOverflow("25", "alarm", Outbox.Overflow.FailFast);
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(client.save("25", "sensor-0", new String[] { Integer.toString(i) }));
+		}
+
+		List<Outbox.Message> inflight = client.outbox.peek(1); // "0" is being published
+
+		Assert.assertTrue(client.save("25", "sensor-0", new String[] { "3" })); // "1" is dropped
+		Assert.assertEquals(3, client.getOutboxSize());
+		Assert.assertEquals(1, client.getDroppedCount());
+
+		try {
+			client.save("25", "alarm", new String[] { "fire" });
+			Assert.fail("Outbox is full");
+
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(1, client.getRejectedCount());
+		}
+
+		client.outbox.remove(inflight.size());
+
+		List<Outbox.Message> messages = client.outbox.peek(10);
+		Assert.assertEquals(2, messages.size());
+		Assert.assertEquals("2", messages.get(0).getRawdata().getValue()[0]);
+		Assert.assertEquals("3", messages.get(1).getRawdata().getValue()[0]);
+		Assert.assertEquals(4, client.getEnqueuedCount());
+		Assert.assertTrue(client.getMaxEnqueueTime() >= 0L);
+	}
+
+	@Test
+	public void testOverflowBlock() throws Exception {
+		client.setOutbox(new Outbox.InMemory(2));
+		client.setOverflow(Outbox.Overflow.Block);
+
+		client.save("25", "sensor-0", new String[] { "0" });
+		client.save("25", "sensor-0", new String[] { "1" });
+
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100L);
+
+					client.outbox.remove(client.outbox.peek(1).size());
+
+				} catch (Exception e) {
+				}
+			}
+		});
+		consumer.start();
+
+		long ctm = System.currentTimeMillis();
+		Assert.assertTrue(client.save("25", "sensor-0", new String[] { "2" })); // wait for the consumer
+		Assert.assertTrue((System.currentTimeMillis() - ctm) >= 50L);
+		Assert.assertEquals(0, client.getDroppedCount());
+
+		consumer.join();
+
+		Thread.currentThread().interrupt();
+		Assert.assertFalse(client.save("25", "sensor-0", new String[] { "3" }));
+		Assert.assertTrue(Thread.interrupted());
+		Assert.assertEquals(0, client.getDroppedCount()); // not because it's full
+		Assert.assertEquals(1, client.getFailedCount());
+	}
+
+	@Test
+	public void testDroppedCallback() throws Exception {
+		final Outbox.InMemory outbox = new Outbox.InMemory(1);
+		client.setOutbox(outbox);
+		client.setOverflow(Outbox.Overflow.DropOldest);
+
+		final List<Boolean> locked = new ArrayList<Boolean>();
+		client.save("25", "sensor-0", new String[] { "0" }, OpenMqttClient.QOS_1, new OpenMqttClient.DeliveryCallbackAdapter() {
+			@Override
+			public void onDropped(String topic, Rawdata rawdata) {
+				locked.add(outbox.lock.isHeldByCurrentThread()); // it may save() again
+			}
+		});
+		client.save("25", "sensor-0", new String[] { "1" });
+
+		Assert.assertEquals(Arrays.asList(false), locked);
+		Assert.assertEquals("1", outbox.peek(1).get(0).getRawdata().getValue()[0]);
+	}
+
+	@Test
+	public void testHandler() throws Exception {
+		final List<String> handled = new ArrayList<String>();
+		final List<String> listened = new ArrayList<String>();
+
+		client.setListener(new OpenMqttClient.ListenerAdapter() {
+			@Override
+			public void onRawdata(String topic, Rawdata rawdata) {
+				listened.add(rawdata.getValue()[0]);
+			}
+		});
+
+		client.subscribe("25", "lamp", new OpenMqttClient.Handler() {
+			@Override
+			public void onRawdata(String topic, Rawdata rawdata) {
+				handled.add(rawdata.getValue()[0]);
+			}
+		});
+		client.subscribe("25", "button");
+
+		client.onMessage("/v1/device/25/sensor/lamp/rawdata", "{\"id\":\"lamp\",\"value\":[\"on\"]}".getBytes("UTF-8"));
+		client.onMessage("/v1/device/25/sensor/button/rawdata", "{\"id\":\"button\",\"value\":[\"1\"]}".getBytes("UTF-8"));
+
+		Assert.assertEquals(Arrays.asList("on"), handled);
+		Assert.assertEquals(Arrays.asList("1"), listened);
+
+		client.unsubscribe("25", "lamp");
+		client.onMessage("/v1/device/25/sensor/lamp/rawdata", "{\"id\":\"lamp\",\"value\":[\"off\"]}".getBytes("UTF-8"));
+
+		Assert.assertEquals(1, handled.size());
+		Assert.assertEquals(Arrays.asList("1", "off"), listened); // back to the listener
+	}
+
+	@Test
+	public void testReconnectPolicy() throws Exception {
+		Assert.assertEquals(5000L, client.getReconnectDelay(1)); // the connection timeout
+
+		ReconnectPolicy.ExponentialBackoff backoff = new ReconnectPolicy.ExponentialBackoff(1000L, 8000L).setJitter(0.5);
+		client.setReconnectPolicy(backoff);
+
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(0L, client.getReconnectDelay(1)); // at once
+
+			long delay = client.getReconnectDelay(2);
+			Assert.assertTrue((delay >= 500L) && (delay <= 1000L));
+
+			delay = client.getReconnectDelay(4);
+			Assert.assertTrue((delay >= 2000L) && (delay <= 4000L));
+
+			delay = client.getReconnectDelay(100); // capped
+			Assert.assertTrue((delay >= 4000L) && (delay <= 8000L));
+		}
+
+		backoff.setImmediateFirstRetry(false).setJitter(0.0);
+		Assert.assertEquals(1000L, client.getReconnectDelay(1));
+		Assert.assertEquals(2000L, client.getReconnectDelay(2));
+	}
+
+	@Test
+	public void testPersistentSession() throws Exception {
+		client.setClientId("gateway-001");
+		client.setCleanSession(false);
+
+		client.subscribe("25", "lamp");
+		client.subscribe("25", "button");
+		client.subscribed.add("/v1/device/25/sensor/lamp/rawdata"); // the broker got it before the connection is lost
+		client.subscribed.add("/v1/device/25/sensor/bracelet/rawdata");
+
+		client.unsubscribe("25", "bracelet"); // nothing, it's not in our topics
+		client.doSubscribe(null); // reconnected
+
+		List<OpenMqttClient.Action> batch = drain();
+		Assert.assertEquals(3, batch.size());
+		Assert.assertEquals(OpenMqttClient.Action.Method.subscribe, batch.get(0).method); // all of them, the broker may have lost the session
+		Assert.assertEquals(OpenMqttClient.Action.Method.subscribe, batch.get(1).method);
+		Assert.assertEquals(OpenMqttClient.Action.Method.unsubscribe, batch.get(2).method);
+		Assert.assertEquals("/v1/device/25/sensor/bracelet/rawdata", batch.get(2).topic);
+
+		client.setCleanSession(true);
+		client.doSubscribe(null);
+		Assert.assertEquals(2, drain().size()); // all of them again
+	}
+
+	@Test
+	public void testStopDuringBackoff() throws Exception {
+		OpenMqttClient unreachable = new OpenMqttClient("127.0.0.1", 1, "apikey");
+		unreachable.setReconnectPolicy(new ReconnectPolicy.Fixed(60000L));
+		unreachable.start();
+
+		Thread t = unreachable.thread;
+		Thread.sleep(500L); // refused, then waiting
+
+		unreachable.stop();
+		t.join(5000L);
+		Assert.assertFalse(t.isAlive());
+	}
+
+	@Test
+	public void testBatchSubscribe() throws Exception {
+		client.setSubscribeBatchSize(3);
+
+		for (int i = 0; i < 7; i++) {
+			client.subscribe("25", "sensor-" + i);
+		}
+		client.doSubscribe(null); // reconnected
+
+		client.unsubscribe("25", "sensor-0");
+		client.unsubscribe("25", "sensor-1");
+		client.subscribe("25", "sensor-0"); // the order is kept
+
+		Assert.assertEquals(-1L, client.getTimeToSubscribed());
+
+		client.doActions(null, drain());
+
+		Assert.assertEquals(5, subscriptions.size()); // [3, 3, 1] on, then [2] off and [1] on
+		Assert.assertTrue(subscriptions.get(0).startsWith("+"));
+		Assert.assertEquals(3, subscriptions.get(0).split(",").length);
+		Assert.assertEquals(1, subscriptions.get(2).split(",").length);
+		Assert.assertEquals("-[/v1/device/25/sensor/sensor-0/rawdata, /v1/device/25/sensor/sensor-1/rawdata]", subscriptions.get(3));
+		Assert.assertEquals("+[/v1/device/25/sensor/sensor-0/rawdata]", subscriptions.get(4));
+
+		Assert.assertTrue(client.getTimeToSubscribed() >= 0L);
+		Assert.assertEquals(6, client.subscribed.size());
+	}
+}
@@ -0,0 +1,49 @@
+package com.cht.iot.service.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenMqttClientPoolTest {
+
+	final OpenMqttClientPool pool = new OpenMqttClientPool("localhost", 1883, "apikey", 4);
+
+	@Test
+	public void testSharding() throws Exception {
+		for (int d = 0; d < 100; d++) {
+			String deviceId = Integer.toString(d);
+			for (int i = 0; i < 3; i++) {
+				Assert.assertTrue(pool.save(deviceId, "sensor-0", new String[] { Integer.toString(i) }));
+			}
+
+			Assert.assertSame(pool.getClient(deviceId), pool.getClient(deviceId));
+		}
+
+		Assert.assertEquals(300, pool.getOutboxSize());
+		Assert.assertEquals(300, pool.getEnqueuedCount());
+
+		for (OpenMqttClient client : pool.getClients()) {
+			Assert.assertTrue(client.getOutboxSize() > 0L); // every connection has some devices
+
+			for (Outbox.Message m : client.outbox.peek(1000)) {
+				String deviceId = m.getTopic().split("/")[3]; // '/v1/device/{id}/rawdata'
+				Assert.assertSame(client, pool.getClient(deviceId)); // all the rawdata of a device are on the same connection
+			}
+		}
+
+		Assert.assertFalse(pool.isConnected());
+		Assert.assertEquals(0, pool.getConnectedCount());
+	}
+
+	@Test
+	public void testListener() throws Exception {
+		OpenMqttClient.Listener listener = new OpenMqttClient.ListenerAdapter();
+		pool.setListener(listener);
+
+		for (OpenMqttClient client : pool.getClients()) {
+			Assert.assertSame(listener, client.listener);
+		}
+
+		pool.subscribe("25", "lamp");
+		Assert.assertTrue(pool.getClient("25").topics.contains("/v1/device/25/sensor/lamp/rawdata"));
+	}
+}
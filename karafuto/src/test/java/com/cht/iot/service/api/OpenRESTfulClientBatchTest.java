@@ -0,0 +1,85 @@
+package com.cht.iot.service.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.util.JsonUtils;
+
+public class OpenRESTfulClientBatchTest {
+
+	final List<String> urls = new ArrayList<String>();
+	final List<String> bodies = new ArrayList<String>();
+
+	final OpenRESTfulClient client = new OpenRESTfulClient("localhost", 8080, "apikey") {
+		@Override
+		protected void postBatch(String url, String json) throws IOException {
+			urls.add(url);
+			bodies.add(json);
+		}
+	};
+
+	protected Rawdata newRawdata(String deviceId, String sensorId, int i) {
+		Rawdata rawdata = new Rawdata();
+		rawdata.setDeviceId(deviceId);
+		rawdata.setId(sensorId);
+		rawdata.setValue(new String[] { Integer.toString(i) });
+
+		return rawdata;
+	}
+
+	@Test
+	public void testBatchSize() throws Exception {
+		client.setMaxBatchSize(3);
+
+		List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+		for (int i = 0; i < 7; i++) {
+			rawdatas.add(newRawdata("25", "sensor-" + (i % 2), i));
+		}
+
+		client.saveRawdatas("25", rawdatas);
+
+		Assert.assertEquals(3, bodies.size());
+		Assert.assertEquals(3, JsonUtils.fromJson(bodies.get(0), Rawdata[].class).length);
+		Assert.assertEquals(3, JsonUtils.fromJson(bodies.get(1), Rawdata[].class).length);
+		Assert.assertEquals(1, JsonUtils.fromJson(bodies.get(2), Rawdata[].class).length);
+		Assert.assertEquals("http://localhost:8080/iot/v1/device/25/rawdata", urls.get(0));
+	}
+
+	@Test
+	public void testBatchBytes() throws Exception {
+		int length = JsonUtils.toJson(newRawdata("25", "sensor-0", 0)).length();
+		client.setMaxBatchBytes((length * 2) + 3); // exactly 2 rawdata in one array
+
+		List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+		for (int i = 0; i < 5; i++) {
+			rawdatas.add(newRawdata("25", "sensor-0", i));
+		}
+
+		client.saveRawdatas("25", rawdatas);
+
+		Assert.assertEquals(3, bodies.size());
+		for (String body : bodies) {
+			Assert.assertTrue(body.length() <= ((length * 2) + 3));
+		}
+	}
+
+	@Test
+	public void testGroupByDevice() throws Exception {
+		List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+		rawdatas.add(newRawdata("25", "sensor-0", 0));
+		rawdatas.add(newRawdata("26", "sensor-0", 1));
+		rawdatas.add(newRawdata("25", "sensor-1", 2));
+
+		client.saveRawdatas(rawdatas);
+
+		Assert.assertEquals(2, bodies.size());
+		Assert.assertEquals("http://localhost:8080/iot/v1/device/25/rawdata", urls.get(0));
+		Assert.assertEquals(2, JsonUtils.fromJson(bodies.get(0), Rawdata[].class).length);
+		Assert.assertEquals("http://localhost:8080/iot/v1/device/26/rawdata", urls.get(1));
+	}
+}
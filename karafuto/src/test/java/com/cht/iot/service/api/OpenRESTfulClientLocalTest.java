@@ -0,0 +1,444 @@
+package com.cht.iot.service.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.api.IColumn;
+import com.cht.iot.persistence.entity.api.ISheet;
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.RawdataSeries;
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.persistence.entity.data.RecordBatch;
+import com.cht.iot.service.api.OpenRESTfulClient.Callback;
+import com.cht.iot.service.api.OpenRESTfulClient.Cursor;
+import com.cht.iot.util.IsoTime;
+import com.cht.iot.util.JsonUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Run the OpenRESTfulClient against a local HTTP server.
+ */
+public class OpenRESTfulClientLocalTest {
+	final String apiKey = "H5T40KG55AWAA9U4";
+	final int count = 10000;
+
+	final byte[] image = new byte[1024 * 1024];
+
+	HttpServer server;
+	final List<String> uploads = new ArrayList<String>(); // transfer encoding / content length, body length
+	OpenRESTfulClient client;
+
+	@Before
+	public void before() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/iot/v1/device/25/sensor/sensor-0/rawdata", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, 0); // chunked
+				Writer w = new OutputStreamWriter(exchange.getResponseBody(), "UTF-8");
+				w.write('[');
+				for (int i = 0; i < count; i++) {
+					if (i > 0) {
+						w.write(',');
+					}
+					w.write(String.format("{\"id\":\"sensor-0\",\"deviceId\":\"25\",\"time\":\"2016-04-06T18:30:05.%03dZ\",\"value\":[\"%d\"]}", i % 1000, i));
+				}
+				w.write(']');
+				w.close();
+			}
+		});
+		server.createContext("/iot/v1/device/25/sheet/job/record", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = "[{\"id\":\"job\",\"time\":\"2016-04-06T18:30:05.077Z\",\"value\":{\"run\":\"1\"}}]".getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.createContext("/iot/v1/device/26/sensor/sensor-0/rawdata", new HttpHandler() { // every 10 minutes of 2016-01-01
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				Map<String, String> query = new HashMap<String, String>();
+				for (String kv : exchange.getRequestURI().getRawQuery().split("&")) {
+					String[] pair = kv.split("=");
+					query.put(pair[0], URLDecoder.decode(pair[1], "UTF-8"));
+				}
+
+				long start = IsoTime.parse(query.get("start"));
+				long end = IsoTime.parse(query.get("end"));
+				long day = IsoTime.parse("2016-01-01T00:00:00.000Z");
+
+				List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+				for (long t = day; t < day + 86400000L; t += 600000L) {
+					if ((start <= t) && (t <= end)) { // inclusive
+						Rawdata rawdata = new Rawdata();
+						rawdata.setId("sensor-0");
+						rawdata.setTime(IsoTime.format(t));
+						rawdata.setValue(new String[] { Long.toString(t) });
+						rawdatas.add(rawdata);
+					}
+				}
+
+				byte[] body = JsonUtils.toJson(rawdatas).getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.createContext("/iot/v1/device/25/snapshot", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+				String te = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+				uploads.add(((te != null)? te : exchange.getRequestHeaders().getFirst("Content-Length")) + "," + body.length);
+
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		new Random().nextBytes(image);
+		server.createContext("/iot/v1/device/25/sensor/camera/snapshot", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, image.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(image);
+				os.close();
+			}
+		});
+		server.createContext("/iot/v1/device/27/", new HttpHandler() { // gzip
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if ("POST".equals(exchange.getRequestMethod())) {
+					InputStream is = exchange.getRequestBody();
+					if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+						is = new GZIPInputStream(is);
+					}
+					uploads.add(IOUtils.toString(is, "UTF-8"));
+
+					exchange.sendResponseHeaders(200, -1);
+					exchange.close();
+
+				} else if ("DELETE".equals(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().add("Content-Encoding", "gzip"); // but no body
+					exchange.sendResponseHeaders(200, -1);
+					exchange.close();
+
+				} else {
+					String ae = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+					boolean gzip = (ae != null) && ae.contains("gzip");
+					if (gzip) {
+						exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+					}
+					exchange.sendResponseHeaders(200, 0);
+
+					OutputStream os = exchange.getResponseBody();
+					if (gzip) {
+						os = new GZIPOutputStream(os);
+					}
+					os.write("[{\"id\":\"sensor-0\",\"value\":[\"1\"]}]".getBytes("UTF-8"));
+					os.close();
+				}
+			}
+		});
+		server.start();
+
+		client = new OpenRESTfulClient("127.0.0.1", server.getAddress().getPort(), apiKey);
+	}
+
+	@After
+	public void after() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testRawdataCallback() throws Exception {
+		final AtomicInteger next = new AtomicInteger();
+		long n = client.getRawdatas("25", "sensor-0", "2016-04-06T00:00:00.000Z", null, null, new Callback<Rawdata>() {
+			@Override
+			public void onData(Rawdata rawdata) throws IOException {
+				Assert.assertEquals(Integer.toString(next.getAndIncrement()), rawdata.getValue()[0]);
+			}
+		});
+
+		Assert.assertEquals(count, n);
+	}
+
+	@Test
+	public void testRawdataSeries() throws Exception {
+		RawdataSeries series = client.getRawdataSeries("26", "sensor-0", "2016-01-01T00:00:00.000Z", "2016-01-02T00:00:00.000Z", null);
+
+		Assert.assertEquals(144, series.size());
+		Assert.assertEquals(1, series.getWidth());
+		for (int i = 0; i < series.size(); i++) {
+			Assert.assertEquals(series.getTime(i), (long) series.getValue(i)); // the value is the time
+		}
+		Assert.assertTrue(Float.isNaN(series.getLat(0)));
+
+		long six = IsoTime.parse("2016-01-01T06:00:00.000Z");
+		Assert.assertEquals(36, series.indexOf(six));
+		Assert.assertEquals(37, series.indexOf(six + 1L));
+
+		RawdataSeries hour = series.slice(six, six + 3600000L);
+		Assert.assertEquals(6, hour.size());
+		Assert.assertEquals(six, hour.getTime(0));
+		Assert.assertEquals(1, hour.indexOf(six + 600000L));
+		Assert.assertEquals("2016-01-01T06:50:00.000Z", hour.getRawdata(5).getTime());
+
+		int n = 0;
+		for (Rawdata rawdata : hour) {
+			Assert.assertEquals(six + (n++ * 600000L), rawdata.getTimestamp());
+		}
+		Assert.assertEquals(6, n);
+	}
+
+	@Test
+	public void testRecordBatch() throws Exception {
+		IColumn run = new IColumn();
+		run.setName("run");
+		run.setType("integer");
+		IColumn rate = new IColumn();
+		rate.setName("rate");
+		rate.setType("float");
+
+		ISheet sheet = new ISheet();
+		sheet.setId("job");
+		sheet.setColumns(new IColumn[] { run, rate });
+
+		RecordBatch batch = client.getRecordBatch("25", sheet, "2016-04-06T00:00:00.000Z", null, null);
+		Assert.assertEquals(1, batch.size());
+		Assert.assertEquals(IsoTime.parse("2016-04-06T18:30:05.077Z"), batch.getTime(0));
+		Assert.assertTrue(batch.isNumber(0, 0));
+		Assert.assertEquals(1L, batch.getLong(0, 0));
+		Assert.assertNull(batch.getString(0, 1));
+
+		int row = batch.add(IsoTime.parse("2016-04-06T18:31:00.000Z"));
+		batch.setLong(row, 0, 2L);
+		batch.setString(row, 1, "0.50");
+
+		client.saveRecords("27", batch);
+		Assert.assertEquals(1, uploads.size());
+		Assert.assertEquals("[{\"id\":\"job\",\"time\":\"2016-04-06T18:30:05.077Z\",\"value\":{\"run\":\"1\"}}," +
+				"{\"id\":\"job\",\"time\":\"2016-04-06T18:31:00.000Z\",\"value\":{\"run\":\"2\",\"rate\":\"0.5\"}}]", uploads.get(0));
+	}
+
+	@Test
+	public void testRawdataCursor() throws Exception {
+		Cursor<Rawdata> cursor = client.iterateRawdatas("25", "sensor-0", "2016-04-06T00:00:00.000Z", null, null);
+		try {
+			for (int i = 0; i < 10; i++) { // only the head
+				Assert.assertTrue(cursor.hasNext());
+				Assert.assertEquals(Integer.toString(i), cursor.next().getValue()[0]);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		Assert.assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testRecordCursor() throws Exception {
+		Cursor<Record> cursor = client.iterateRecords("25", "job", "2016-04-06T00:00:00.000Z", null, null);
+
+		Assert.assertTrue(cursor.hasNext());
+		Assert.assertEquals("1", cursor.next().getValue().get("run"));
+		Assert.assertFalse(cursor.hasNext()); // released
+	}
+
+	@Test
+	public void testSaveSnapshot() throws Exception {
+		// unknown length, chunked
+		client.saveSnapshot("25", "camera", null, null, null, new String[0], "snapshot.jpg", "image/jpeg", new ByteArrayInputStream(image), -1L);
+		Assert.assertTrue(uploads.get(0).startsWith("chunked,"));
+
+		// known length
+		client.saveSnapshot("25", "camera", null, null, null, new String[0], "snapshot.jpg", "image/jpeg", new ByteArrayInputStream(image), image.length);
+		String[] upload = uploads.get(1).split(",");
+		Assert.assertEquals(upload[0], upload[1]);
+		Assert.assertTrue(Integer.parseInt(upload[1]) > image.length);
+
+		// file
+		File file = File.createTempFile("snapshot", ".jpg");
+		try {
+			FileUtils.writeByteArrayToFile(file, image);
+			client.saveSnapshot("25", "camera", null, null, null, new String[0], "snapshot.jpg", "image/jpeg", file.toPath());
+			upload = uploads.get(2).split(",");
+			Assert.assertEquals(upload[0], upload[1]);
+			Assert.assertTrue(Integer.parseInt(upload[1]) > image.length);
+
+		} finally {
+			file.delete();
+		}
+
+		// unknown length is never buffered
+		client.saveSnapshot("25", "camera", null, null, null, new String[0], "snapshot.jpg", "image/jpeg", new ByteArrayInputStream(image));
+		Assert.assertTrue(uploads.get(3).startsWith("chunked,"));
+	}
+
+	@Test
+	public void testGetSnapshotBody() throws Exception {
+		for (int i = 0; i < 5; i++) { // more than the pooled connections, so they must be released
+			InputStream is = client.getSnapshotBody("25", "camera");
+			try {
+				Assert.assertArrayEquals(image, IOUtils.toByteArray(is));
+
+			} finally {
+				is.close();
+			}
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Assert.assertEquals(image.length, client.getSnapshotBody("25", "camera", "abc", baos));
+		Assert.assertArrayEquals(image, baos.toByteArray());
+
+		baos.reset();
+		Assert.assertEquals(image.length, client.getSnapshotBody("25", "camera", Channels.newChannel(baos)));
+		Assert.assertArrayEquals(image, baos.toByteArray());
+
+		File file = File.createTempFile("snapshot", ".jpg");
+		try {
+			Assert.assertEquals(image.length, client.getSnapshotBody("25", "camera", "abc", file.toPath()));
+			Assert.assertArrayEquals(image, FileUtils.readFileToByteArray(file));
+
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testConnectionPool() throws Exception {
+		OpenRESTfulClient pooled = new OpenRESTfulClient.Builder("127.0.0.1", server.getAddress().getPort(), apiKey)
+										.setMaxConnectionsPerHost(4)
+										.setIdleTimeout(60000L)
+										.setConnectionTtl(1L)
+										.build();
+		try {
+			for (int i = 0; i < 3; i++) {
+				Assert.assertEquals(image.length, pooled.getSnapshotBody("25", "camera", new ByteArrayOutputStream()));
+				Thread.sleep(10L);
+			}
+
+			MonitoredConnectionManager manager = pooled.getConnectionManager();
+			Assert.assertEquals(3, manager.getLeaseCount());
+			Assert.assertEquals(0, manager.getLeasedConnections());
+			Assert.assertTrue(manager.getExpiredCount() > 0);
+			Assert.assertEquals(0, manager.getTimeoutCount());
+
+		} finally {
+			pooled.close();
+		}
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		OpenRESTfulClient compressed = new OpenRESTfulClient.Builder("127.0.0.1", server.getAddress().getPort(), apiKey)
+											.enableCompression(true)
+											.build();
+		try {
+			List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+			for (int i = 0; i < 100; i++) {
+				Rawdata rawdata = new Rawdata();
+				rawdata.setId("sensor-0");
+				rawdata.setValue(new String[] { Integer.toString(i) });
+				rawdatas.add(rawdata);
+			}
+			compressed.saveRawdatas("27", rawdatas);
+			Assert.assertEquals(100, JsonUtils.fromJson(uploads.get(0), Rawdata[].class).length);
+
+			Rawdata[] queried = compressed.getRawdatas("27", "sensor-0", "2016-01-01T00:00:00.000Z", null, null);
+			Assert.assertEquals("1", queried[0].getValue()[0]);
+
+			compressed.deleteRawdata("27", "sensor-0", "2016-01-01T00:00:00.000Z", null); // empty gzip body
+
+		} finally {
+			compressed.close();
+		}
+	}
+
+	@Test
+	public void testParallelRangeQuery() throws Exception {
+		ParallelRangeQuery query = new ParallelRangeQuery(client, 4, 3 * 3600000L); // 8 chunks
+		try {
+			Rawdata[] rawdatas = query.getRawdatas("26", "sensor-0", "2016-01-01T00:00:00.000Z", "2016-01-02T00:00:00.000Z", null);
+
+			Assert.assertEquals(144, rawdatas.length);
+			for (int i = 1; i < rawdatas.length; i++) {
+				Assert.assertTrue(Long.parseLong(rawdatas[i - 1].getValue()[0]) < Long.parseLong(rawdatas[i].getValue()[0]));
+			}
+		} finally {
+			query.close();
+		}
+	}
+
+	@Test
+	public void testParallelRangeQueryOnYourExecutor() throws Exception {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		OpenRESTfulClient slow = new OpenRESTfulClient("localhost", 8080, "apikey") {
+			@Override
+			public Rawdata[] getRawdatas(String deviceId, String sensorId, String start, String end, Integer interval) throws IOException {
+				int n = inFlight.incrementAndGet();
+				try {
+					synchronized (maxInFlight) {
+						maxInFlight.set(Math.max(maxInFlight.get(), n));
+					}
+
+					Thread.sleep(10L);
+
+					return new Rawdata[0];
+
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		};
+
+		ExecutorService executor = Executors.newCachedThreadPool(); // as many threads as the chunks
+		ParallelRangeQuery query = new ParallelRangeQuery(slow, 2, 3600000L, executor); // 24 chunks
+		try {
+			query.getRawdatas("26", "sensor-0", "2016-01-01T00:00:00.000Z", "2016-01-02T00:00:00.000Z", null);
+
+			Assert.assertEquals(2, maxInFlight.get());
+
+		} finally {
+			executor.shutdownNow();
+			slow.close();
+		}
+	}
+}
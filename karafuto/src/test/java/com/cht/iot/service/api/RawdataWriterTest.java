@@ -0,0 +1,118 @@
+package com.cht.iot.service.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+
+public class RawdataWriterTest {
+
+	final List<Integer> batches = new ArrayList<Integer>();
+
+	final OpenRESTfulClient client = new OpenRESTfulClient("localhost", 8080, "apikey") {
+		@Override
+		public void saveRawdatas(Collection<Rawdata> rawdatas) throws IOException {
+			synchronized (batches) {
+				batches.add(rawdatas.size());
+				batches.notifyAll();
+			}
+		}
+	};
+
+	protected int total() {
+		int n = 0;
+		for (int size : batches) {
+			n += size;
+		}
+		return n;
+	}
+
+	@Test
+	public void testFlushBySize() throws Exception {
+		RawdataWriter writer = new RawdataWriter(client, 100);
+		writer.setBatchSize(10);
+		writer.setLingerTime(60000L);
+
+		for (int i = 0; i < 25; i++) {
+			Assert.assertTrue(writer.write("25", "sensor-0", Integer.toString(i)));
+		}
+
+		writer.start();
+		synchronized (batches) {
+			while (total() < 20) {
+				batches.wait(5000L);
+			}
+			Assert.assertEquals(10, batches.get(0).intValue());
+			Assert.assertEquals(10, batches.get(1).intValue());
+		}
+
+		writer.stop(); // flush the rest
+		long deadline = System.currentTimeMillis() + 5000L;
+		while ((writer.getFlushedCount() < 25) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(25, writer.getFlushedCount());
+		Assert.assertEquals(3, writer.getFlushCount());
+	}
+
+	@Test
+	public void testFlushByLingerTime() throws Exception {
+		RawdataWriter writer = new RawdataWriter(client, 100);
+		writer.setBatchSize(100);
+		writer.setLingerTime(50L);
+		writer.start();
+		try {
+			writer.write("25", "sensor-0", "1");
+			writer.write("25", "sensor-1", "2");
+
+			synchronized (batches) {
+				long deadline = System.currentTimeMillis() + 5000L;
+				while (batches.isEmpty() && (System.currentTimeMillis() < deadline)) {
+					batches.wait(100L);
+				}
+				Assert.assertEquals(2, total());
+			}
+			Assert.assertEquals(0, writer.getQueueDepth());
+
+		} finally {
+			writer.stop();
+		}
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		RawdataWriter writer = new RawdataWriter(client, 2);
+		writer.setOverflow(RawdataWriter.Overflow.DropNewest);
+
+		Assert.assertTrue(writer.write("25", "sensor-0", "1"));
+		Assert.assertTrue(writer.write("25", "sensor-0", "2"));
+		Assert.assertFalse(writer.write("25", "sensor-0", "3"));
+		Assert.assertEquals(1, writer.getDroppedCount());
+
+		writer.setOverflow(RawdataWriter.Overflow.DropOldest);
+		Assert.assertTrue(writer.write("25", "sensor-0", "4"));
+		Assert.assertEquals(2, writer.getDroppedCount());
+		Assert.assertEquals(2, writer.getQueueDepth());
+	}
+
+	@Test(timeout = 5000L)
+	public void testNotRunning() throws Exception {
+		RawdataWriter writer = new RawdataWriter(client, 1);
+		writer.start();
+		writer.start(); // still one flusher
+		writer.stop();
+
+		Assert.assertFalse(writer.write("25", "sensor-0", "1")); // never waits
+		Assert.assertFalse(writer.write("25", "sensor-0", "2"));
+		Assert.assertEquals(2, writer.getDroppedCount());
+
+		writer = new RawdataWriter(client, 1); // not started yet
+		Assert.assertTrue(writer.write("25", "sensor-0", "1"));
+		Assert.assertFalse(writer.write("25", "sensor-0", "2")); // full, nobody takes it
+	}
+}
@@ -0,0 +1,251 @@
+package com.cht.iot.service.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.Record;
+import com.cht.iot.util.JsonUtils;
+import com.cht.iot.util.SegmentLog;
+
+public class StoreAndForwardTest {
+
+	volatile int status = 0; // 0 is unreachable
+	volatile String refused; // the POST with it is a bad request
+	volatile String broken; // the POST with it fails
+
+	final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+	final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+	final OpenRESTfulClient client = new OpenRESTfulClient("localhost", 8080, "apikey") {
+		@Override
+		protected InputStream post(EntityEnclosingMethod eem, String json) throws IOException {
+			if (status == 0) {
+				throw new IOException("Connection refused");
+
+			} else if (status != 200) {
+				throw new HttpStatusException(status, "Bad Request");
+
+			} else if ((refused != null) && json.contains(refused)) {
+				throw new HttpStatusException(400, "Bad Request");
+
+			} else if ((broken != null) && json.contains(broken)) {
+				throw new IllegalStateException("Broken");
+			}
+
+			urls.add(eem.getURI().toString());
+			bodies.add(json);
+
+			return null;
+		}
+	};
+
+	File dir;
+
+	@Before
+	public void before() throws Exception {
+		dir = Files.createTempDirectory("spool").toFile();
+	}
+
+	@After
+	public void after() throws Exception {
+		client.close();
+
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testSpoolAndReplay() throws Exception {
+		StoreAndForward saf = new StoreAndForward(client, new SegmentLog(dir, 1024, 16));
+		saf.setRetryDelay(10L, 100L);
+		saf.start();
+		try {
+			for (int i = 0; i < 10; i++) {
+				saf.saveRawdata("25", "sensor-0", Integer.toString(i));
+			}
+			saf.saveRecord("25", "sheet-0", null, Collections.singletonMap("key", "value"));
+
+			Assert.assertEquals(11, saf.getSpooledCount());
+			Assert.assertEquals(0, saf.getSentCount());
+			Assert.assertTrue(saf.getSpoolBytes() > 0L);
+
+			status = 200; // online again
+
+			long deadline = System.currentTimeMillis() + 5000L;
+			while ((saf.getSpoolSize() > 0L) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10L);
+			}
+
+			Assert.assertEquals(0, saf.getSpoolSize());
+			Assert.assertEquals(11, saf.getReplayedCount());
+
+			List<Rawdata> rawdatas = new ArrayList<Rawdata>();
+			for (int i = 0; i < urls.size(); i++) {
+				if (urls.get(i).endsWith("/rawdata")) {
+					rawdatas.addAll(Arrays.asList(JsonUtils.fromJson(bodies.get(i), Rawdata[].class)));
+				}
+			}
+			Assert.assertEquals(10, rawdatas.size());
+			for (int i = 0; i < 10; i++) {
+				Assert.assertEquals(Integer.toString(i), rawdatas.get(i).getValue()[0]); // in order
+				Assert.assertNotNull(rawdatas.get(i).getTime()); // the moment we got it
+			}
+
+			Record[] records = JsonUtils.fromJson(bodies.get(bodies.size() - 1), Record[].class);
+			Assert.assertEquals("value", records[0].getValue().get("key"));
+			Assert.assertTrue(urls.get(urls.size() - 1).endsWith("/iot/v1/device/25/record"));
+
+			saf.saveRawdata("25", "sensor-0", "10"); // straight to the server
+			Assert.assertEquals(1, saf.getSentCount());
+
+		} finally {
+			saf.stop();
+		}
+	}
+
+	@Test
+	public void testClientError() throws Exception {
+		StoreAndForward saf = new StoreAndForward(client, new SegmentLog(dir, 1024, 16));
+
+		status = 400;
+		try {
+			saf.saveRawdata("25", "sensor-0", "0");
+			Assert.fail("Bad request should not be spooled");
+
+		} catch (HttpStatusException e) {
+			Assert.assertEquals(400, e.getStatusCode());
+		}
+
+		Assert.assertEquals(0, saf.getSpoolSize());
+
+		status = 401; // the key may be rotated, keep it
+		saf.saveRawdata("25", "sensor-0", "1");
+		Assert.assertEquals(1, saf.getSpoolSize());
+
+		saf.stop();
+	}
+
+	@Test
+	public void testRejectOne() throws Exception {
+		client.setMaxBatchSize(4);
+
+		SegmentLog spool = new SegmentLog(dir, 4096, 16);
+		spool.append(StoreAndForward.RAWDATA, "25\n{not json".getBytes("UTF-8"));
+		spool.append((byte) 9, "25\n{}".getBytes("UTF-8"));
+
+		StoreAndForward saf = new StoreAndForward(client, spool);
+		saf.setRetryDelay(10L, 100L);
+		for (int i = 0; i < 10; i++) {
+			saf.saveRawdata("25", "sensor-0", Integer.toString(i));
+		}
+
+		refused = "\"5\"";
+		status = 200;
+
+		saf.start();
+		try {
+			long deadline = System.currentTimeMillis() + 5000L;
+			while ((saf.getSpoolSize() > 0L) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10L);
+			}
+
+			Assert.assertEquals(0, saf.getSpoolSize());
+			Assert.assertEquals(9, saf.getReplayedCount());
+			Assert.assertEquals(3, saf.getRejectedCount()); // broken, unknown type and "5"
+
+			List<String> values = new ArrayList<String>();
+			for (String body : bodies) {
+				for (Rawdata rawdata : JsonUtils.fromJson(body, Rawdata[].class)) {
+					values.add(rawdata.getValue()[0]);
+				}
+			}
+			Assert.assertEquals(Arrays.asList("0", "1", "2", "3", "4", "6", "7", "8", "9"), values); // only "5" is lost, once each
+
+		} finally {
+			saf.stop();
+		}
+	}
+
+	@Test
+	public void testSkipBroken() throws Exception {
+		client.setMaxBatchSize(4);
+
+		StoreAndForward saf = new StoreAndForward(client, new SegmentLog(dir, 4096, 16));
+		saf.setRetryDelay(1L, 1L);
+		saf.setMaxAttempts(3);
+		for (int i = 0; i < 6; i++) {
+			saf.saveRawdata("25", "sensor-0", Integer.toString(i));
+		}
+
+		broken = "\"2\"";
+		status = 200;
+
+		saf.start();
+		try {
+			long deadline = System.currentTimeMillis() + 5000L;
+			while ((saf.getSpoolSize() > 0L) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10L);
+			}
+
+			Assert.assertEquals(0, saf.getSpoolSize());
+			Assert.assertEquals(5, saf.getReplayedCount());
+			Assert.assertEquals(1, saf.getRejectedCount()); // only "2"
+
+			saf.saveRawdata("25", "sensor-0", "6"); // not held up any more
+			Assert.assertEquals(1, saf.getSentCount());
+
+		} finally {
+			saf.stop();
+		}
+	}
+
+	@Test
+	public void testSegmentLog() throws Exception {
+		SegmentLog log = new SegmentLog(dir, 64, 3);
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(log.append((byte) 1, new byte[] { (byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0 })); // 19 bytes each, 3 in a segment
+		}
+
+		List<SegmentLog.Entry> entries = log.read(2);
+		Assert.assertEquals(2, entries.size());
+		log.commit(entries.get(1));
+		log.close();
+
+		log = new SegmentLog(dir, 64, 3); // crash-safe offset
+		Assert.assertEquals(3, log.size());
+
+		entries = log.read(10);
+		Assert.assertEquals(3, entries.size());
+		Assert.assertEquals(2, entries.get(0).getPayload()[0]);
+		Assert.assertEquals(4, entries.get(2).getPayload()[0]);
+
+		for (int i = 5; i < 9; i++) { // the 3rd segment is the last one
+			Assert.assertTrue(log.append((byte) 1, new byte[] { (byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0 }));
+		}
+		Assert.assertFalse(log.append((byte) 1, new byte[10])); // full
+
+		log.commit(log.read(3).get(2));
+		Assert.assertEquals(2, dir.list().length - 1); // the 1st segment is deleted, 'offset' is there
+		Assert.assertTrue(log.append((byte) 1, new byte[10]));
+
+		log.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSingleSegment() throws Exception {
+		new SegmentLog(dir, 64, 1); // it could never roll
+	}
+}
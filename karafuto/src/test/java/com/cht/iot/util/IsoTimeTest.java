@@ -0,0 +1,191 @@
+package com.cht.iot.util;
+
+import java.lang.management.ManagementFactory;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.Record;
+
+public class IsoTimeTest {
+
+	static DateFormat newDateFormat() {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		return df;
+	}
+
+	@Test
+	public void testFormatAndParse() throws Exception {
+		DateFormat df = newDateFormat();
+		Random random = new Random(0L);
+
+		long[] times = new long[1000];
+		times[0] = 0L;
+		times[1] = -1L;
+		times[2] = 951782400000L; // 2000-02-29
+		for (int i = 3; i < times.length; i++) {
+			times[i] = (long) ((random.nextDouble() * 2e12) - 1e12); // 1938 ~ 2033
+		}
+
+		for (long t : times) {
+			String s = df.format(new Date(t));
+
+			Assert.assertEquals(s, IsoTime.format(t));
+			Assert.assertEquals(t, IsoTime.parse(s));
+		}
+
+		char[] buf = new char[IsoTime.LENGTH + 2];
+		Assert.assertEquals(IsoTime.LENGTH + 1, IsoTime.format(0L, buf, 1));
+		Assert.assertEquals(0L, IsoTime.parse(buf, 1, IsoTime.LENGTH));
+
+		byte[] bytes = new byte[IsoTime.LENGTH];
+		IsoTime.format(951782400000L, bytes, 0);
+		Assert.assertEquals("2000-02-29T00:00:00.000Z", new String(bytes, "US-ASCII"));
+	}
+
+	@Test
+	public void testLenient() throws Exception {
+		long t = IsoTime.parse("2016-01-01T08:00:00.000Z");
+
+		Assert.assertEquals(1451635200000L, t);
+		Assert.assertEquals(t - 28800000L, IsoTime.parse("2016-01-01"));
+		Assert.assertEquals(t, IsoTime.parse("2016-01-01T08:00"));
+		Assert.assertEquals(t, IsoTime.parse("2016-01-01 08:00:00"));
+		Assert.assertEquals(t + 500L, IsoTime.parse("2016-01-01T08:00:00.5Z"));
+		Assert.assertEquals(t + 123L, IsoTime.parse("2016-01-01T08:00:00.123456Z"));
+		Assert.assertEquals(t - 28800000L, IsoTime.parse("2016-01-01T08:00:00.000+08:00"));
+		Assert.assertEquals(t + 19800000L, IsoTime.parse("2016-01-01T08:00:00-0530"));
+
+		Assert.assertNull(IsoTime.tryParse("2016-13-01T00:00:00.000Z"));
+		Assert.assertNull(IsoTime.tryParse("2016-01-01T00:00:00.000Zx"));
+		Assert.assertNull(IsoTime.tryParse("20160101"));
+		Assert.assertNull(IsoTime.tryParse(""));
+		Assert.assertNull(IsoTime.tryParse(null));
+
+		char[] buf = "[\"2016-01-01T0x:00\",\"other\"]".toCharArray();
+		try {
+			IsoTime.parse(buf, 2, 16);
+			Assert.fail();
+
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Unknown timestamp - 2016-01-01T0x:00", e.getMessage()); // not the whole buffer
+		}
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		Rawdata rawdata = JsonUtils.fromJson("{\"id\":\"sensor-0\",\"time\":\"2016-01-01T08:00:00.000+08:00\"}", Rawdata.class);
+		Assert.assertEquals(1451606400000L, rawdata.getTimestamp());
+		Assert.assertEquals("2016-01-01T08:00:00.000+08:00", rawdata.getTime()); // as it was sent
+
+		rawdata.setTimestamp(0L);
+		Assert.assertEquals("{\"id\":\"sensor-0\",\"time\":\"1970-01-01T00:00:00.000Z\"}", JsonUtils.toJson(rawdata));
+
+		rawdata.setTime("yesterday");
+		Assert.assertEquals(Rawdata.NO_TIME, rawdata.getTimestamp());
+		Assert.assertEquals("yesterday", rawdata.getTime());
+
+		rawdata = JsonUtils.fromJson("{\"id\":\"sensor-0\",\"time\":\"yesterday\"}", Rawdata.class); // never fails
+		Assert.assertEquals(Rawdata.NO_TIME, rawdata.getTimestamp());
+		Assert.assertEquals("{\"id\":\"sensor-0\",\"time\":\"yesterday\"}", JsonUtils.toJson(rawdata));
+
+		Record[] records = JsonUtils.fromJson("[{\"id\":\"s\",\"time\":\"2016-01-02T00:00:00.000Z\"},{\"id\":\"s\"},{\"id\":\"s\",\"time\":\"2016-01-01T00:00:00.000Z\"}]", Record[].class);
+		Arrays.sort(records, Record.TIME_ORDER);
+		Assert.assertNull(records[0].getTime());
+		Assert.assertEquals("2016-01-01T00:00:00.000Z", records[1].getTime());
+		Assert.assertEquals("{\"id\":\"s\"}", JsonUtils.toJson(records[0]));
+	}
+
+	/**
+	 * Compare with the old path - the synchronized SimpleDateFormat shared by the threads.
+	 * It only prints the numbers, run it by 'gradle test -Dbenchmark=true'.
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		final int threads = 4;
+		final int n = 200000;
+
+		final DateFormat df = newDateFormat();
+		final long base = System.currentTimeMillis();
+
+		Runnable old = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < n; i++) {
+					synchronized (df) {
+						df.format(new Date(base + i));
+					}
+				}
+			}
+		};
+
+		Runnable iso = new Runnable() {
+			@Override
+			public void run() {
+				char[] buf = new char[IsoTime.LENGTH];
+				for (int i = 0; i < n; i++) {
+					IsoTime.format(base + i, buf, 0);
+				}
+			}
+		};
+
+		run(threads, old); // warm up
+		run(threads, iso);
+
+		long oldTime = run(threads, old);
+		long isoTime = run(threads, iso);
+
+		System.out.printf("synchronized SimpleDateFormat - %,d format/s with %d threads\n", (long) (threads * n * 1e9 / oldTime), threads);
+		System.out.printf("IsoTime                       - %,d format/s with %d threads\n", (long) (threads * n * 1e9 / isoTime), threads);
+
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+
+		char[] s = IsoTime.format(base).toCharArray();
+		long sum = 0L;
+		for (int i = 0; i < n; i++) { // warm up
+			sum += IsoTime.parse(s, 0, s.length);
+		}
+
+		long bytes = mx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < n; i++) {
+			sum += IsoTime.parse(s, 0, s.length);
+		}
+		long parseBytes = mx.getThreadAllocatedBytes(tid) - bytes;
+
+		System.out.printf("IsoTime.parse(char[])         - %,d bytes/parse (%d)\n", parseBytes / n, sum & 1);
+	}
+
+	static long run(int threads, final Runnable runnable) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		long ctm = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runnable.run();
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+
+		return System.nanoTime() - ctm;
+	}
+}
@@ -0,0 +1,159 @@
+package com.cht.iot.util;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.cht.iot.persistence.entity.data.Rawdata;
+import com.cht.iot.persistence.entity.data.RawdataSeries;
+
+public class RawdataDecoderTest {
+
+	final byte[] payload = bytes("{\"id\":\"sensor-0\",\"deviceId\":\"25\",\"time\":\"2016-01-01T00:00:00.000Z\",\"lat\":24.95,\"lon\":121.16,\"value\":[\"23.5\",\"60\"],\"unknown\":{\"a\":[1,2]}}");
+
+	static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void testDecode() throws Exception {
+		Rawdata rawdata = new RawdataDecoder().decode(payload);
+
+		Assert.assertEquals("sensor-0", rawdata.getId());
+		Assert.assertEquals("25", rawdata.getDeviceId());
+		Assert.assertEquals("2016-01-01T00:00:00.000Z", rawdata.getTime());
+		Assert.assertEquals(24.95f, rawdata.getLat(), 0.0001f);
+		Assert.assertEquals(121.16f, rawdata.getLon(), 0.0001f);
+		Assert.assertArrayEquals(new String[] { "23.5", "60" }, rawdata.getValue());
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		RawdataDecoder decoder = new RawdataDecoder();
+
+		Rawdata rawdata = new Rawdata();
+		decoder.decode(payload, 0, payload.length, rawdata);
+		String[] value = rawdata.getValue();
+
+		byte[] other = bytes("{\"id\":\"sensor-1\",\"value\":[\"1\",\"2\"]}");
+		decoder.decode(other, 0, other.length, rawdata);
+
+		Assert.assertSame(value, rawdata.getValue()); // same length, reused
+		Assert.assertArrayEquals(new String[] { "1", "2" }, rawdata.getValue());
+		Assert.assertEquals("sensor-1", rawdata.getId());
+		Assert.assertNull(rawdata.getTime()); // reset
+		Assert.assertNull(rawdata.getLat());
+
+		other = bytes("{\"id\":\"sensor-1\",\"time\":\"2016-01-01T08:00:00+08:00\"}");
+		decoder.decode(other, 0, other.length, rawdata);
+
+		Assert.assertEquals("2016-01-01T08:00:00+08:00", rawdata.getTime()); // as it was sent
+		Assert.assertEquals(1451606400000L, rawdata.getTimestamp());
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+		byte[] payload = bytes("{\"id\":\"sensor-0\",\"value\":[\"23.5\",\"60\",\"n/a\"]}");
+		Rawdata rawdata = new RawdataDecoder().decode(payload);
+
+		double[] doubles = rawdata.getDoubleValue();
+		Assert.assertEquals(23.5, doubles[0], 0.0);
+		Assert.assertEquals(60.0, doubles[1], 0.0);
+		Assert.assertTrue(Double.isNaN(doubles[2]));
+		Assert.assertSame(doubles, rawdata.getDoubleValue()); // parsed once
+		Assert.assertArrayEquals(new long[] { 23L, 60L, 0L }, rawdata.getLongValue());
+		Assert.assertTrue(rawdata.isNumber(1));
+		Assert.assertFalse(rawdata.isNumber(2)); // not a real 0
+
+		rawdata.setLongValue(new long[] { 7L, -1234567890123L });
+		Assert.assertEquals("{\"id\":\"sensor-0\",\"value\":[\"7\",\"-1234567890123\"]}", JsonUtils.toJson(rawdata));
+		Assert.assertArrayEquals(new String[] { "7", "-1234567890123" }, rawdata.getValue());
+
+		rawdata.setDoubleValue(new double[] { 1.0, 0.25, Double.NaN });
+		Assert.assertEquals("{\"id\":\"sensor-0\",\"value\":[\"1\",\"0.25\",null]}", JsonUtils.toJson(rawdata));
+		Assert.assertArrayEquals(new String[] { "1", "0.25", null }, JsonUtils.fromJson(JsonUtils.toJson(rawdata), Rawdata.class).getValue());
+	}
+
+	@Test
+	public void testSeries() throws Exception {
+		byte[] json = bytes("[{\"id\":\"s\",\"time\":\"2016-01-01T00:00:00.000Z\",\"value\":[\"1.5\"]},"
+				+ "{\"id\":\"s\",\"time\":\"2016-01-01T00:00:01.000Z\",\"lat\":24.95,\"lon\":121.16,\"value\":[\"-0.1\",\"2e3\",\"on\"]},"
+				+ "{\"id\":\"s\",\"time\":\"2016-01-01T00:00:02.000Z\",\"value\":[7]}]");
+
+		RawdataSeries series = new RawdataSeries("25", "s", 1);
+		Assert.assertEquals(3, new RawdataDecoder().decode(new ByteArrayInputStream(json), series));
+
+		Assert.assertEquals(3, series.getWidth()); // widened by the second one
+		Assert.assertEquals(1.5, series.getValue(0), 0.0);
+		Assert.assertTrue(Double.isNaN(series.getValue(0, 1)));
+		Assert.assertEquals(-0.1, series.getValue(1, 0), 0.0); // exactly what Double.parseDouble() gives
+		Assert.assertEquals(2000.0, series.getValue(1, 1), 0.0);
+		Assert.assertTrue(Double.isNaN(series.getValue(1, 2)));
+		Assert.assertEquals(7.0, series.getValue(2), 0.0);
+
+		Assert.assertTrue(Float.isNaN(series.getLat(0)));
+		Assert.assertEquals(24.95f, series.getLat(1), 0.0001f);
+		Assert.assertTrue(Float.isNaN(series.getLon(2)));
+
+		Assert.assertEquals(1451606401000L, series.getTime(1));
+		Assert.assertEquals(2, series.slice(1, 3).size());
+		Assert.assertEquals(1451606402000L, series.slice(1, 3).getTime(1));
+
+		Random random = new Random(0L);
+		for (int i = 0; i < 10000; i++) {
+			String s = Double.toString(Math.round(random.nextGaussian() * 1e6) / 1e3);
+			Assert.assertEquals(s, Double.parseDouble(s), RawdataDecoder.parseDouble(s.toCharArray(), 0, s.length()), 0.0);
+		}
+	}
+
+	/**
+	 * Compare with the old path - new String(payload) then JsonUtils.fromJson().
+	 * It only prints the numbers, run it by 'gradle test -Dbenchmark=true'.
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+
+		final int n = 200000;
+		byte[] payload = bytes("{\"id\":\"sensor-0\",\"time\":\"2016-01-01T00:00:00.000Z\",\"value\":[\"23.5\",\"60\"]}"); // ObjectMapper rejects the unknown field
+		RawdataDecoder decoder = new RawdataDecoder();
+		Rawdata holder = new Rawdata();
+
+		for (int i = 0; i < n; i++) { // warm up
+			JsonUtils.fromJson(new String(payload, "UTF-8"), Rawdata.class);
+			decoder.decode(payload, 0, payload.length, holder);
+		}
+
+		long bytes = mx.getThreadAllocatedBytes(tid);
+		long ctm = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			JsonUtils.fromJson(new String(payload, "UTF-8"), Rawdata.class);
+		}
+		long oldTime = System.nanoTime() - ctm;
+		long oldBytes = mx.getThreadAllocatedBytes(tid) - bytes;
+
+		bytes = mx.getThreadAllocatedBytes(tid);
+		ctm = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			decoder.decode(payload, 0, payload.length, holder);
+		}
+		long newTime = System.nanoTime() - ctm;
+		long newBytes = mx.getThreadAllocatedBytes(tid) - bytes;
+
+		System.out.printf("fromJson(String)        - %,d msg/s, %,d bytes/msg\n", (long) (n * 1e9 / oldTime), oldBytes / n);
+		System.out.printf("RawdataDecoder(byte[])  - %,d msg/s, %,d bytes/msg\n", (long) (n * 1e9 / newTime), newBytes / n);
+	}
+}